@@ -0,0 +1,33 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to run the blockchain benchmarks and write the results in JSON,
+ * so results of two runs can be compared by a script to spot regressions.
+ * Usage: BenchmarkMain [result file] [benchmark name pattern], by default jmh-result.json and every benchmark.
+ */
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkMain {
+
+    /**
+     * This routine runs the benchmarks.
+     * @param args result file and benchmark name pattern, both optional
+     * @throws RunnerException if a benchmark fails
+     */
+    public static void main(String[] args) throws RunnerException {
+
+        String resultFile = args.length > 0 ? args[0] : "jmh-result.json";
+        String pattern = args.length > 1 ? args[1] : "(Block|Chain|Signature)Benchmark";
+
+        Options options = new OptionsBuilder()
+                .include(pattern)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to benchmark hashing and mining a single block.
+ * The header is fixed and every mining run starts from nonce 0, so every run does exactly the same work.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BlockBenchmark {
+
+    /**
+     * This class holds a block that does not belong to any chain.
+     */
+    @State(Scope.Thread)
+    public static class BlockState {
+
+        //Number of leading zero nibbles the mined block needs
+        @Param({"1", "2", "3", "4"})
+        public int difficulty;
+
+        Block block;
+
+        /**
+         * This method creates the block.
+         */
+        @Setup(Level.Trial)
+        public void createBlock(){
+            this.block = new Block(1, new Timestamp(1600000000000L), "benchmark transaction", this.difficulty);
+            this.block.setPreviousHash("00" + "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcd");
+        }
+    }
+
+    /**
+     * This class rewinds the nonce so every mining run searches from the start.
+     * A setup on every invocation costs more than hashing once, so only the mining benchmark uses it.
+     */
+    @State(Scope.Thread)
+    public static class MiningState extends BlockState {
+
+        @Setup(Level.Invocation)
+        public void resetNonce(){
+            this.block.setNonce(BigInteger.ZERO);
+        }
+    }
+
+    /**
+     * This benchmark hashes the header once.
+     * @param state the block
+     * @return the hash
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String calculateHash(BlockState state){
+        return state.block.calculateHash();
+    }
+
+    /**
+     * This benchmark searches for a nonce meeting the difficulty on the calling thread.
+     * @param state the block, with its nonce rewound
+     * @return the hash of the mined block
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String proofOfWork(MiningState state){
+        return state.block.proofOfWork();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to benchmark validating and repairing whole chains.
+ * Chains are mined once per trial with difficulty 1, so building the 100k block chain stays quick.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.concurrent.TimeUnit;
+
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChainBenchmark {
+
+    /**
+     * This class holds a mined chain for every combination of the parameters.
+     */
+    @State(Scope.Thread)
+    public static class ChainState {
+
+        //Number of blocks in the chain, the genesis block included
+        @Param({"1000", "10000", "100000"})
+        public int chainSize;
+
+        //Whether validation hashes ranges of blocks on the fork-join pool
+        @Param({"false", "true"})
+        public boolean parallel;
+
+        BlockChain blockchain;
+
+        /**
+         * This method mines the chain.
+         */
+        @Setup(Level.Trial)
+        public void createChain(){
+            this.blockchain = new BlockChain();
+            this.blockchain.addBlock(new Block(0, this.blockchain.getTime(), "", 1));
+            for(int i = 1; i < this.chainSize; i++){
+                this.blockchain.addBlock(new Block(i, this.blockchain.getTime(), "transaction " + i, 1));
+            }
+            this.blockchain.setParallelVerification(this.parallel);
+        }
+    }
+
+    /**
+     * This class corrupts the block in the middle of the chain before every repair.
+     */
+    @State(Scope.Thread)
+    public static class CorruptedState extends ChainState {
+
+        private int corruptions = 0;
+
+        @Setup(Level.Invocation)
+        public void corrupt(){
+            this.blockchain.blocks.get(this.chainSize / 2).setData("corrupted " + this.corruptions++);
+        }
+    }
+
+    /**
+     * This benchmark validates every block, the verified prefix is cleared first so nothing is skipped.
+     * @param state the chain
+     * @return whether the chain is valid
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public boolean isChainValid(ChainState state){
+        state.blockchain.invalidateFrom(0);
+        return state.blockchain.isChainValid();
+    }
+
+    /**
+     * This benchmark validates a chain that has not changed since it was last validated.
+     * @param state the chain
+     * @return whether the chain is valid
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public boolean isChainValidUnchanged(ChainState state){
+        return state.blockchain.isChainValid();
+    }
+
+    /**
+     * This benchmark repairs the second half of the chain.
+     * @param state the corrupted chain
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(iterations = 10)
+    public void repairChain(CorruptedState state){
+        state.blockchain.repairChain();
+    }
+}
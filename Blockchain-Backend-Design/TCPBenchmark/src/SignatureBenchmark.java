@@ -0,0 +1,109 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to benchmark checking the id and signature of a request, the work Server.check does.
+ * The verifier is called directly because Server.check prints a line for every request.
+ */
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SignatureBenchmark {
+
+    //Requests checked together by the batch benchmark
+    private static final int BATCH = 64;
+
+    private JSONObject request;
+    private List<JSONObject> batch;
+    //Remembers the key of the request, like the verifier of the server
+    private SignatureVerifier cached;
+    //Remembers nothing, so every check parses the key and generates the id again
+    private SignatureVerifier uncached;
+
+    /**
+     * This method generates a key the way the client does and signs a status request with it.
+     * @throws ParseException if the signed request cannot be parsed
+     */
+    @Setup(Level.Trial)
+    public void signRequest() throws ParseException {
+
+        //Generate a 800 bit RSA key like Client.RSA
+        Random rnd = new Random(42);
+        BigInteger p = new BigInteger(400, 100, rnd);
+        BigInteger q = new BigInteger(400, 100, rnd);
+        BigInteger n = p.multiply(q);
+        BigInteger phi = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+        BigInteger e = new BigInteger("65537");
+        BigInteger d = e.modInverse(phi);
+
+        //Build and sign the message like Client.createMessage and Client.sign
+        JSONObject obj = new JSONObject();
+        obj.put("id", Server.generateID(e, n));
+        obj.put("e", e.toString());
+        obj.put("n", n.toString());
+        obj.put("type", 0);
+        obj.put("param1", 0);
+        obj.put("param2", "");
+        String message = obj.toString();
+        BigInteger signature = new BigInteger(1, Server.SHA256Hash(message)).modPow(d, n);
+        obj.put("signature", signature.toString());
+
+        //Parse it back the way the server receives it
+        this.request = (JSONObject) new JSONParser().parse(obj.toString());
+        this.batch = new ArrayList<>();
+        for(int i = 0; i < BATCH; i++){
+            this.batch.add(this.request);
+        }
+        this.cached = new SignatureVerifier(1024);
+        this.uncached = new SignatureVerifier(0);
+    }
+
+    /**
+     * This benchmark checks a request from a client whose key was seen before.
+     * @return whether the request is valid
+     */
+    @Benchmark
+    public boolean verifyCachedKey(){
+        return this.cached.verify(this.request);
+    }
+
+    /**
+     * This benchmark checks a request from a client whose key was not seen before.
+     * @return whether the request is valid
+     */
+    @Benchmark
+    public boolean verifyNewKey(){
+        return this.uncached.verify(this.request);
+    }
+
+    /**
+     * This benchmark checks a batch of pipelined requests in parallel.
+     * @return whether each request is valid
+     */
+    @Benchmark
+    public boolean[] verifyBatch(){
+        return this.cached.verifyAll(this.batch);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to talk to the blockchain server from other programs.
+ * It keeps a small pool of persistent connections that use the pipelined protocol, so many requests can be
+ * waiting for their responses at the same time, and hands every response back through a CompletableFuture.
+ * A request is serialized and signed once, the signature and sequence number are appended to the signed bytes
+ * instead of parsing the message again. A request that gets no response within the timeout fails instead of waiting forever.
+ */
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.simple.JSONObject;
+
+public class BlockChainClient implements Closeable {
+
+    //Request type of the stream request, which answers with many lines and cannot share a pipelined connection
+    private static final int STREAM_TYPE = 13;
+    //Time to wait for a response by default, longer than the longest receipt long-poll of the server
+    public static final long DEFAULT_TIMEOUT = 60000;
+
+    private final String host;
+    private final int port;
+    private final Map key;
+    private final String id;
+    private final String e;
+    private final String n;
+    private final long timeout;
+    private final Connection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * This class is one persistent connection, shared by every thread sending over it.
+     * Requests are tagged with a sequence number and a reader thread completes the future waiting for each response.
+     */
+    private class Connection {
+
+        private Socket socket;
+        private OutputStream out;
+        private long nextSeq = 0;
+        //Futures of requests sent but not answered yet, by sequence number
+        private final Map<Long, CompletableFuture<JSONObject>> pending = new ConcurrentHashMap<>();
+
+        /**
+         * This method opens the connection and asks for the pipelined protocol. The caller holds the lock of the connection.
+         * @throws IOException if the server cannot be reached or does not support pipelining
+         */
+        private void open() throws IOException {
+
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+
+            //Ask for the pipelined protocol before anything else is sent
+            out.write("{\"protocol\":2}\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            JSONObject reply = Client.readJSON(in.readLine());
+            if(reply.get("protocol") == null || ((Long) reply.get("protocol")).intValue() < 2){
+                socket.close();
+                throw new IOException("Server does not support pipelined requests");
+            }
+
+            this.socket = socket;
+            this.out = out;
+            Thread reader = new Thread(() -> read(socket, in), "client-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * This method sends a signed request without waiting for its response.
+         * @param message the signed request
+         * @return the future completed with the response
+         */
+        synchronized CompletableFuture<JSONObject> send(String message){
+            CompletableFuture<JSONObject> future = new CompletableFuture<>();
+            try {
+                if(this.socket == null) open();
+                long seq = this.nextSeq++;
+                this.pending.put(seq, future);
+                //Give up on the response after the timeout, a late one is ignored
+                future.orTimeout(BlockChainClient.this.timeout, TimeUnit.MILLISECONDS).whenComplete((map, error) -> this.pending.remove(seq));
+                this.out.write((Client.addField(message, "seq", seq) + "\n").getBytes(StandardCharsets.UTF_8));
+                this.out.flush();
+            } catch (IOException error) {
+                drop(this.socket, error);
+                future.completeExceptionally(error);
+            }
+            return future;
+        }
+
+        /**
+         * This method runs on the reader thread of a connection and completes the futures as their responses arrive.
+         * @param socket the connection
+         * @param in the reader of the connection
+         */
+        private void read(Socket socket, BufferedReader in){
+            try {
+                String data;
+                while((data = in.readLine()) != null){
+                    JSONObject map = Client.readJSON(data);
+                    Object seq = map.get("seq");
+                    //A response that cannot be matched to its request means the connection is out of step
+                    if(seq == null) throw new IOException("Response without seq: " + data);
+                    CompletableFuture<JSONObject> future = this.pending.remove(seq);
+                    if(future != null) future.complete(map);
+                }
+                drop(socket, new IOException("Connection closed by server"));
+            } catch (IOException error) {
+                drop(socket, error);
+            } catch (RuntimeException error) {
+                drop(socket, new IOException("Unreadable response: " + error));
+            }
+        }
+
+        /**
+         * This method closes a broken connection and fails every request still waiting on it, the next request opens a new one.
+         * @param socket the connection that broke
+         * @param error why it broke
+         */
+        private synchronized void drop(Socket socket, IOException error){
+            if(socket == null || socket != this.socket) return;
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                //Ignore exception on close
+            }
+            this.socket = null;
+            for(Long seq : this.pending.keySet()){
+                CompletableFuture<JSONObject> future = this.pending.remove(seq);
+                if(future != null) future.completeExceptionally(error);
+            }
+        }
+
+        /**
+         * This method closes the connection.
+         */
+        synchronized void close(){
+            drop(this.socket, new IOException("Client closed"));
+        }
+    }
+
+    /**
+     * This constructor creates a client that waits DEFAULT_TIMEOUT for every response, connections are opened on first use.
+     * @param host the host of the server
+     * @param port the port of the server
+     * @param connections number of persistent connections requests are spread over
+     * @param key map containing the keys every request is signed with
+     */
+    public BlockChainClient(String host, int port, int connections, Map key){
+        this(host, port, connections, key, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * This constructor creates a client, connections are opened on first use.
+     * @param host the host of the server
+     * @param port the port of the server
+     * @param connections number of persistent connections requests are spread over
+     * @param key map containing the keys every request is signed with
+     * @param timeout longest time to wait for a response in milliseconds
+     */
+    public BlockChainClient(String host, int port, int connections, Map key, long timeout){
+        this.host = host;
+        this.port = port;
+        this.key = key;
+        this.timeout = Math.max(1, timeout);
+        this.id = Client.generateID((BigInteger) key.get("e"), (BigInteger) key.get("n"));
+        this.e = key.get("e").toString();
+        this.n = key.get("n").toString();
+        this.connections = new Connection[Math.max(1, connections)];
+        for(int i = 0; i < this.connections.length; i++){
+            this.connections[i] = new Connection();
+        }
+    }
+
+    /**
+     * This method signs and sends a request without waiting for the response.
+     * The request is signed on the calling thread, so several threads sign at the same time.
+     * @param type request type
+     * @param param1 first parameter
+     * @param param2 second parameter
+     * @return the future completed with the response, or completed exceptionally if the connection broke or the timeout ran out
+     */
+    public CompletableFuture<JSONObject> sendAsync(int type, int param1, String param2){
+        if(type == STREAM_TYPE) throw new IllegalArgumentException("Stream requests are read with Client.streamInput");
+        String message = Client.signMessage(Client.createMessage(this.id, this.e, this.n, type, param1, param2), this.key);
+        Connection connection = this.connections[Math.floorMod(this.next.getAndIncrement(), this.connections.length)];
+        return connection.send(message);
+    }
+
+    /**
+     * This method signs and sends a request and waits for the response.
+     * @param type request type
+     * @param param1 first parameter
+     * @param param2 second parameter
+     * @return the response
+     * @throws IOException if the connection broke or the timeout ran out before the response arrived
+     */
+    public JSONObject send(int type, int param1, String param2) throws IOException {
+        try {
+            return sendAsync(type, param1, param2).join();
+        } catch (CompletionException error) {
+            if(error.getCause() instanceof IOException) throw (IOException) error.getCause();
+            if(error.getCause() instanceof TimeoutException) throw new IOException("No response within " + this.timeout + " milliseconds");
+            throw error;
+        }
+    }
+
+    /**
+     * This method closes every connection, requests still waiting fail.
+     */
+    @Override
+    public void close(){
+        for(Connection connection : this.connections){
+            connection.close();
+        }
+    }
+}
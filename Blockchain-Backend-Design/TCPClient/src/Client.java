@@ -11,7 +11,10 @@ import java.io.*;
 import java.util.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -19,6 +22,7 @@ public class Client {
 
     /**
      * Method RSA generates a pair of private and public keys for encryption and decryption.
+     * Besides d the map keeps the primes and the Chinese Remainder Theorem parameters, so signing works modulo p and q.
      * @return a map containing keys
      */
     public static Map RSA() {
@@ -29,18 +33,23 @@ public class Client {
         BigInteger n; //n is the modulus for both the private and public keys
         BigInteger e; //e is the exponent of the public key
         BigInteger d; //d is the exponent of the private key
-        Random rnd = new Random();
+        Random rnd = new SecureRandom();
+        //By convention the prime 65537 is used as the public exponent
+        e = new BigInteger("65537");
         //Step 1: Generate two large random primes
         //Note that I used 400 bits here, but best practice for security is 2048 bits
-        BigInteger p = new BigInteger(400, 100, rnd);
-        BigInteger q = new BigInteger(400, 100, rnd);
+        BigInteger p;
+        BigInteger q;
+        BigInteger phi;
+        do {
+            p = new BigInteger(400, 100, rnd);
+            q = new BigInteger(400, 100, rnd);
+            //Step 3: Compute phi(n) = (p-1) * (q-1)
+            phi = (p.subtract(BigInteger.ONE)).multiply(q.subtract(BigInteger.ONE));
+        //Step 4: e has to be relatively prime to phi(n), and p and q have to differ
+        } while (p.equals(q) || !phi.gcd(e).equals(BigInteger.ONE));
         //Step 2: Compute n by the equation n = p * q
         n = p.multiply(q);
-        //Step 3: Compute phi(n) = (p-1) * (q-1)
-        BigInteger phi = (p.subtract(BigInteger.ONE)).multiply(q.subtract(BigInteger.ONE));
-        //Step 4: Select a small odd integer e that is relatively prime to phi(n)
-        //By convention the prime 65537 is used as the public exponent
-        e = new BigInteger("65537");
         //Step 5: Compute d as the multiplicative inverse of e modulo phi(n)
         d = e.modInverse(phi);
 
@@ -52,9 +61,125 @@ public class Client {
         key.put("e", e);
         key.put("d", d);
         key.put("n", n);
+        addCRT(key, p, q);
+        return key;
+    }
+
+    /**
+     * This method adds the Chinese Remainder Theorem parameters of a key to its map.
+     * @param key map containing d
+     * @param p first prime
+     * @param q second prime
+     */
+    private static void addCRT(Map<String, BigInteger> key, BigInteger p, BigInteger q) {
+        BigInteger d = key.get("d");
+        key.put("p", p);
+        key.put("q", q);
+        key.put("dP", d.mod(p.subtract(BigInteger.ONE)));
+        key.put("dQ", d.mod(q.subtract(BigInteger.ONE)));
+        key.put("qInv", q.modInverse(p));
+    }
+
+    /**
+     * This method loads the keys from a keystore file, or generates new ones and saves them there if the file does not exist,
+     * so a scripted client signs with the same key on every run.
+     * The file holds one name=value line per key part, in decimal, and is only readable by its owner where the file system allows it.
+     * @param file path of the keystore file
+     * @return a map containing keys
+     * @throws IOException if the file cannot be read or written, misses a key part, or holds parts that do not make one key
+     */
+    public static Map loadOrCreateKeys(java.nio.file.Path file) throws IOException {
+
+        if(java.nio.file.Files.exists(file)){
+            Properties stored = new Properties();
+            try (Reader reader = java.nio.file.Files.newBufferedReader(file, java.nio.charset.StandardCharsets.US_ASCII)) {
+                stored.load(reader);
+            }
+            Map<String, BigInteger> key = new HashMap<>();
+            for(String name : new String[]{"e", "d", "n"}){
+                String value = stored.getProperty(name);
+                if(value == null) throw new IOException("Keystore " + file + " has no " + name);
+                key.put(name, new BigInteger(value.trim()));
+            }
+            //Keystores without the primes still sign, only without the Chinese Remainder Theorem
+            BigInteger p = null;
+            BigInteger q = null;
+            if(stored.getProperty("p") != null && stored.getProperty("q") != null){
+                p = new BigInteger(stored.getProperty("p").trim());
+                q = new BigInteger(stored.getProperty("q").trim());
+            }
+            checkKey(key, p, q, file);
+            if(p != null) addCRT(key, p, q);
+            return key;
+        }
+
+        Map<String, BigInteger> key = RSA();
+        StringBuilder text = new StringBuilder("#RSA keys of the blockchain client\n");
+        for(String name : new String[]{"e", "n", "d", "p", "q"}){
+            text.append(name).append('=').append(key.get(name)).append('\n');
+        }
+        //Write the file where nobody else can read it before the private key goes in
+        java.nio.file.Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        java.nio.file.Files.deleteIfExists(temporary);
+        try {
+            java.nio.file.Files.createFile(temporary, java.nio.file.attribute.PosixFilePermissions.asFileAttribute(
+                    java.nio.file.attribute.PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ex) {
+            java.nio.file.Files.createFile(temporary);
+        }
+        java.nio.file.Files.write(temporary, text.toString().getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+        java.nio.file.Files.move(temporary, file, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
         return key;
     }
 
+    /**
+     * This method checks that the parts of a loaded key belong together, so an edited or damaged keystore fails here
+     * instead of producing signatures the server rejects without saying why.
+     * With the primes, p times q has to be n and e times d has to be 1 modulo lcm(p-1, q-1),
+     * without them a small message has to come back unchanged after raising it to e and then d.
+     * @param key map containing e, d and n
+     * @param p first prime, or null if the keystore has none
+     * @param q second prime, or null if the keystore has none
+     * @param file path of the keystore file
+     * @throws IOException if the parts do not make one RSA key
+     */
+    private static void checkKey(Map<String, BigInteger> key, BigInteger p, BigInteger q, java.nio.file.Path file) throws IOException {
+        BigInteger e = key.get("e");
+        BigInteger d = key.get("d");
+        BigInteger n = key.get("n");
+        if(n.compareTo(BigInteger.valueOf(3)) < 0) throw new IOException("Keystore " + file + " is damaged: n is too small");
+        if(p != null){
+            if(p.compareTo(BigInteger.ONE) <= 0 || q.compareTo(BigInteger.ONE) <= 0 || !p.multiply(q).equals(n)){
+                throw new IOException("Keystore " + file + " is damaged: p times q is not n");
+            }
+            BigInteger p1 = p.subtract(BigInteger.ONE);
+            BigInteger q1 = q.subtract(BigInteger.ONE);
+            BigInteger lcm = p1.multiply(q1).divide(p1.gcd(q1));
+            if(!e.multiply(d).mod(lcm).equals(BigInteger.ONE)){
+                throw new IOException("Keystore " + file + " is damaged: e times d is not 1 modulo lcm(p-1, q-1)");
+            }
+        }else{
+            BigInteger m = BigInteger.valueOf(2);
+            if(!m.modPow(e, n).modPow(d, n).equals(m)) throw new IOException("Keystore " + file + " is damaged: d does not undo e");
+        }
+    }
+
+    /**
+     * This method picks the keys from the command line: the keystore given as --keystore=path, or fresh keys without it.
+     * @param args command line arguments
+     * @return a map containing keys, or null if the keystore cannot be used
+     */
+    private static Map keys(String[] args) {
+        String keystore = option(args, "keystore", null);
+        if(keystore == null) return RSA();
+        try {
+            return loadOrCreateKeys(java.nio.file.Paths.get(keystore));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("IO Exception:" + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Method SHA256Hash hashes a given string using "SHA-256"
      * @param text a String
@@ -131,49 +256,188 @@ public class Client {
         return c.toString();
     }
 
+    /**
+     * Method sign uses the private key to encrypt a message, with the Chinese Remainder Theorem when the primes are known.
+     * Two exponentiations modulo the primes, with exponents half as long, take about a third of the time of one modulo n.
+     * @param bytes byte array of the hashed message
+     * @param key map containing the keys
+     * @return a encrypted String, the same as sign with d and n
+     */
+    public static String sign(byte[] bytes, Map key) {
+
+        BigInteger p = (BigInteger) key.get("p");
+        if(p == null) return sign(bytes, (BigInteger) key.get("d"), (BigInteger) key.get("n"));
+        BigInteger q = (BigInteger) key.get("q");
+
+        //Make sure the hash generates a positive BigInteger
+        BigInteger m = new BigInteger(1, bytes);
+        //Exponentiate modulo each prime, then combine the two results with Garner's formula
+        BigInteger m1 = m.modPow((BigInteger) key.get("dP"), p);
+        BigInteger m2 = m.modPow((BigInteger) key.get("dQ"), q);
+        BigInteger h = ((BigInteger) key.get("qInv")).multiply(m1.subtract(m2)).mod(p);
+        return m2.add(h.multiply(q)).toString();
+    }
+
+    //Server every request goes to, set from --host and --port
+    private static String serverHost = "localhost";
+    private static int serverPort = 7777;
+
+    //Connection kept open between requests, opened on first use
+    private static Socket clientSocket = null;
+    private static BufferedReader in = null;
+    private static PrintWriter out = null;
+
+    //Request types that change nothing on the server, so they can be sent again after the connection broke
+    private static final Set<Long> READ_ONLY_TYPES = new HashSet<>(Arrays.asList(0L, 2L, 3L, 8L, 9L, 10L, 11L, 12L, 14L, 15L));
+
     /**
      * This method connects to and sends the JSON formatted message to the server
+     * The connection is kept open and reused by the next request. If it broke, it is opened again once and the request sent again,
+     * unless the request had already been sent and changes the chain: the server may have carried it out, so it must not run twice.
      * @param message JSON representation of request
-     * @return JSON representation of response
+     * @return JSON representation of response, or of an error if the request failed
      */
-    public static String sendInput(String message) {
+    public static synchronized String sendInput(String message) {
 
-        Socket clientSocket = null;
-        try {
-            //Allocate a server port to the client
-            int serverPort = 7777;
-            //Create a TCP client Socket
-            clientSocket = new Socket("localhost", serverPort);
-
-            //Set up "in" to read from the client socket
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            //Set up "out" to write to the client socket
-            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
-
-            //Write data to the socket
-            out.println(message);
-            out.flush();
-            //Read data from the socket
-            String data = in.readLine();
-            //System.out.println("Received: " + data);
-            return data;
-
-            //Handle exceptions
-        } catch (IOException e) {
-            System.out.println("IO Exception:" + e.getMessage());
-            //If quitting (typically by user sending quit signal), clean up sockets
-        } finally {
+        Object type = readJSON(message).get("type");
+        boolean readOnly = READ_ONLY_TYPES.contains(type);
+        for(int attempt = 0; attempt < 2; attempt++){
+            boolean sent = false;
             try {
-                if (clientSocket != null) {
-                    clientSocket.close();
+                if(clientSocket == null){
+                    //Create a TCP client Socket
+                    clientSocket = new Socket(serverHost, serverPort);
+
+                    //Set up "in" to read from the client socket
+                    in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                    //Set up "out" to write to the client socket
+                    out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
                 }
+
+                //Write data to the socket, PrintWriter only reports a failed write through checkError
+                out.println(message);
+                out.flush();
+                if(out.checkError()) throw new IOException("Could not send the request");
+                sent = true;
+                //Read data from the socket
+                String data = in.readLine();
+                if(data == null) throw new IOException("Connection closed by server");
+                //System.out.println("Received: " + data);
+                return data;
+
+            //Handle exceptions
             } catch (IOException e) {
-                //Ignore exception on close
+                disconnect();
+                if(attempt == 1 || (sent && !readOnly)){
+                    System.out.println("IO Exception:" + e.getMessage());
+                    JSONObject error = new JSONObject();
+                    error.put("error", "IO Exception:" + e.getMessage());
+                    return error.toString();
+                }
             }
         }
         return "";
     }
 
+    /**
+     * This method sends a stream request and hands every block to the consumer as soon as its line arrives,
+     * so the whole chain is never held in memory.
+     * @param message JSON representation of a type 13 request
+     * @param consumer receives the JSON representation of every block
+     * @return the number of blocks received, or -1 if the request failed
+     */
+    public static synchronized int streamInput(String message, java.util.function.Consumer<String> consumer) {
+
+        //The header comes back like any other response
+        JSONObject header = readJSON(sendInput(message));
+        if(header.get("stream") == null){
+            System.out.println(header.get("error"));
+            return -1;
+        }
+
+        int count = 0;
+        try {
+            String data;
+            while((data = in.readLine()) != null){
+                //Block lines are {"block":{...}}, hand over the block as it was written
+                if(!data.startsWith("{\"block\":")){
+                    if(readJSON(data).get("end") != null) return count;
+                    continue;
+                }
+                consumer.accept(data.substring(9, data.length() - 1));
+                count++;
+            }
+            throw new IOException("Connection closed by server");
+        } catch (IOException e) {
+            disconnect();
+            System.out.println("IO Exception:" + e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * This method closes the connection to the server, the next request opens a new one.
+     */
+    public static synchronized void disconnect() {
+        try {
+            if (clientSocket != null) {
+                clientSocket.close();
+            }
+        } catch (IOException e) {
+            //Ignore exception on close
+        }
+        clientSocket = null;
+        in = null;
+        out = null;
+    }
+
+    /**
+     * This method sends many requests over one connection without waiting for each response.
+     * It opens the connection with the protocol 2 handshake and tags every request with a "seq" number.
+     * The server answers in whatever order the requests finish, the responses are put back in request order here.
+     * @param messages signed JSON representations of the requests
+     * @return JSON representations of the responses, in the order of the requests
+     */
+    public static List<String> sendPipelined(List<String> messages) {
+
+        String[] responses = new String[messages.size()];
+        try (Socket socket = new Socket(serverHost, serverPort)) {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+
+            //Ask for the pipelined protocol
+            JSONObject hello = new JSONObject();
+            hello.put("protocol", 2);
+            writer.println(hello.toString());
+            writer.flush();
+            JSONObject reply = readJSON(reader.readLine());
+            if(reply.get("protocol") == null || ((Long) reply.get("protocol")).intValue() < 2){
+                throw new IOException("Server does not support pipelined requests");
+            }
+
+            //Send every request back to back
+            for(int seq = 0; seq < messages.size(); seq++){
+                writer.println(addField(messages.get(seq), "seq", seq));
+            }
+            writer.flush();
+
+            //Match the responses with their requests
+            for(int received = 0; received < messages.size(); received++){
+                String data = reader.readLine();
+                if(data == null) throw new IOException("Connection closed by server");
+                Object seq = readJSON(data).get("seq");
+                if(seq == null) throw new IOException("Response without seq: " + data);
+                responses[((Long) seq).intValue()] = data;
+            }
+
+        //Handle exceptions
+        } catch (IOException e) {
+            System.out.println("IO Exception:" + e.getMessage());
+        }
+        return Arrays.asList(responses);
+    }
+
     /**
      * This method creates a message in JSON format
      * @param id user id generated by the client
@@ -203,17 +467,161 @@ public class Client {
      * @return JSON representation of final message to be sent
      */
     public static String addSignature(String message, String signature){
+        return addField(message, "signature", signature);
+    }
 
-        JSONParser parser = new JSONParser();
-        JSONObject obj;
+    /**
+     * This method adds a field to a JSON formatted message
+     * The field is written in front of the closing brace, so the signed part of the message is neither parsed nor serialized again.
+     * @param message previous version of message, a JSON object
+     * @param name name of the field, which must not be in the message yet
+     * @param value value of the field
+     * @return JSON representation of the message with the field
+     */
+    public static String addField(String message, String name, Object value){
+
+        int end = message.lastIndexOf('}');
+        if(end < 0) return "";
+        StringBuilder obj = new StringBuilder(message.length() + name.length() + 32);
+        obj.append(message, 0, end);
+        //An empty object does not need a comma
+        if(message.substring(0, end).trim().length() > 1) obj.append(',');
+        obj.append('"').append(JSONValue.escape(name)).append("\":").append(JSONValue.toJSONString(value));
+        obj.append(message, end, message.length());
+        return obj.toString();
+    }
+
+    /**
+     * This method signs a message with the private key and adds the signature to it
+     * @param message JSON representation of the message
+     * @param key map containing the keys
+     * @return JSON representation of the signed message
+     */
+    public static String signMessage(String message, Map key){
+        //Hash message
+        byte[] bytes = SHA256Hash(message);
+        //Encrypt hashed message
+        String signature = sign(bytes, key);
+        return addSignature(message, signature);
+    }
+
+    /**
+     * This method signs many messages at once on all cores, the result is in the order of the messages.
+     * @param messages JSON representations of the messages
+     * @param key map containing the keys
+     * @return JSON representations of the signed messages
+     */
+    public static List<String> signAll(List<String> messages, Map key){
+        String[] signed = new String[messages.size()];
+        java.util.stream.IntStream.range(0, signed.length).parallel().forEach(i -> signed[i] = signMessage(messages.get(i), key));
+        return Arrays.asList(signed);
+    }
+
+    /**
+     * This method loads transactions from a file, one per line, and adds them to the blockchain in batches.
+     * Every batch is one type 6 request, and all batches are pipelined over a single connection.
+     * @param file path of the file holding the transactions
+     * @param difficulty difficulty of the new blocks
+     * @param batchSize number of transactions per request
+     * @param key map containing the keys
+     */
+    public static void loadTransactions(String file, int difficulty, int batchSize, Map key) {
+
+        List<String> lines;
         try {
-            obj = (JSONObject) parser.parse(message);
-            obj.put("signature", signature);
-            return obj.toString();
-        } catch (ParseException e) {
-            e.printStackTrace();
+            lines = java.nio.file.Files.readAllLines(java.nio.file.Paths.get(file), java.nio.charset.StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("IO Exception:" + e.getMessage());
+            return;
+        }
+
+        String id = generateID((BigInteger) key.get("e"), (BigInteger) key.get("n"));
+        String e = key.get("e").toString();
+        String n = key.get("n").toString();
+
+        //Pack the transactions into batch requests and sign them all in parallel
+        List<String> messages = new ArrayList<>();
+        for(int start = 0; start < lines.size(); start += batchSize){
+            JSONArray batch = new JSONArray();
+            batch.addAll(lines.subList(start, Math.min(lines.size(), start + batchSize)));
+            messages.add(createMessage(id, e, n, 6, difficulty, batch.toString()));
+        }
+        messages = signAll(messages, key);
+
+        long t0 = System.currentTimeMillis();
+        List<String> responses = sendPipelined(messages);
+        long t1 = System.currentTimeMillis();
+
+        int added = 0;
+        for(String response : responses){
+            if(response == null) continue;
+            JSONObject map = readJSON(response);
+            if(map.get("error") != null) System.out.println("Batch failed: " + map.get("error"));
+            else added += ((Long) map.get("count")).intValue();
+        }
+        System.out.println("Added " + added + " of " + lines.size() + " transactions in " + (t1 - t0) + " milliseconds");
+    }
+
+    /**
+     * This method checks a Merkle inclusion proof sent by the server, without the other transactions of the block.
+     * Leaves are hashed as SHA-256(0x00 + transaction) and inner nodes as SHA-256(0x01 + left + right),
+     * a node without a sibling moves up unchanged.
+     * The root proves nothing by itself, it has to be checked with blockHash against a block hash the user trusts.
+     * @param transaction the transaction
+     * @param position position of the transaction in the block
+     * @param count number of transactions in the block
+     * @param proof hex Strings of the sibling hashes, from the leaf up
+     * @param root hex String of the Merkle root of the block
+     * @return whether the transaction is in the block
+     */
+    public static boolean verifyProof(String transaction, int position, int count, List<String> proof, String root){
+
+        if(position < 0 || position >= count) return false;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) 0);
+            digest.update(transaction.getBytes("UTF-8"));
+            byte[] hash = digest.digest();
+
+            int node = position;
+            int width = count;
+            int used = 0;
+            while(width > 1){
+                if((node ^ 1) < width){
+                    if(used >= proof.size()) return false;
+                    byte[] sibling = new BigInteger("01" + proof.get(used++), 16).toByteArray();
+                    sibling = Arrays.copyOfRange(sibling, 1, sibling.length);
+                    digest.update((byte) 1);
+                    digest.update((node & 1) == 0 ? hash : sibling);
+                    digest.update((node & 1) == 0 ? sibling : hash);
+                    hash = digest.digest();
+                }
+                node >>= 1;
+                width = (width + 1) / 2;
+            }
+            return used == proof.size() && byteArrayToString(hash).equals(root);
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException | NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * This method hashes a block header the way the server does, with the Merkle root as the data of the block,
+     * so a root sent by the server can be checked against a block hash the user already trusts.
+     * @param map response of the server holding the header of the block
+     * @return hex String of the block hash, or null if the header is incomplete
+     */
+    public static String blockHash(JSONObject map){
+
+        if(map.get("index") == null || map.get("timestamp") == null || map.get("root") == null
+                || map.get("previousHash") == null || map.get("nonce") == null || map.get("difficulty") == null) return null;
+        String header = map.get("index").toString() + map.get("timestamp") + map.get("root")
+                + map.get("previousHash") + map.get("nonce") + map.get("difficulty");
+        try {
+            return byteArrayToString(MessageDigest.getInstance("SHA-256").digest(header.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+            return null;
         }
-        return "";
     }
 
     /**
@@ -234,13 +642,57 @@ public class Client {
 
     }
 
+    /**
+     * This method reads an option of the form --name=value from the command line arguments.
+     * @param args command line arguments
+     * @param name option name without the leading dashes
+     * @param defaultValue value used when the option is absent
+     * @return the option value
+     */
+    public static String option(String[] args, String name, String defaultValue){
+        String prefix = "--" + name + "=";
+        for(String arg : args){
+            if(arg.startsWith(prefix)) return arg.substring(prefix.length());
+        }
+        return defaultValue;
+    }
+
+    /**
+     * This routine runs the interactive client menu.
+     * Pass --load=file to add every line of the file as a transaction instead, in pipelined batches
+     * (--difficulty=N and --batch-size=N tune the batches).
+     * Pass --users=N to simulate N users each sending --requests=N requests of --type=N over --connections=N pipelined connections.
+     * Pass --host=name and --port=N to talk to another server than localhost:7777.
+     * Pass --keystore=path to sign with the keys kept in that file, it is created with new keys if it does not exist.
+     * @param args
+     */
     public static void main(String args[]) {
 
+        serverHost = option(args, "host", serverHost);
+        serverPort = Integer.parseInt(option(args, "port", String.valueOf(serverPort)));
+
+        //Load private and public keys, or create them
+        Map key = keys(args);
+        if(key == null) return;
+
+        //Run as a load generator
+        if(option(args, "users", null) != null){
+            LoadGenerator.runFromOptions(args, serverHost, serverPort, key);
+            return;
+        }
+
+        //Run as a bulk loader
+        String file = option(args, "load", null);
+        if(file != null){
+            loadTransactions(file, Integer.parseInt(option(args, "difficulty", "2")),
+                    Integer.parseInt(option(args, "batch-size", "100")), key);
+            return;
+        }
+
         System.out.println("Welcome to Project3 Task 1.");
         System.out.println();
 
-        //Create private and public keys
-        Map key = RSA();
+        //Private and public keys
         String id = generateID((BigInteger) key.get("e"), (BigInteger) key.get("n"));
         String e = key.get("e").toString();
         String n = key.get("n").toString();
@@ -258,6 +710,9 @@ public class Client {
             System.out.println("4. Corrupt the chain.");
             System.out.println("5. Hide the Corruption by repairing the chain.");
             System.out.println("6. Exit");
+            System.out.println("7. Submit a transaction to the mempool.");
+            System.out.println("8. Check a transaction receipt.");
+            System.out.println("9. Prove a transaction is in a block.");
 
             String choice = input.nextLine();
             try{
@@ -271,7 +726,7 @@ public class Client {
                     //Hash message
                     byte[] bytes = SHA256Hash(message);
                     //Encrypt hashed message
-                    String signature = sign(bytes, (BigInteger) key.get("d"), (BigInteger) key.get("n"));
+                    String signature = sign(bytes, key);
                     message = addSignature(message, signature);
                     //System.out.println(message);
                     //Sends final message to socket
@@ -312,7 +767,7 @@ public class Client {
                     //Hash message
                     byte[] bytes = SHA256Hash(message);
                     //Encrypt hashed message
-                    String signature = sign(bytes, (BigInteger) key.get("d"), (BigInteger) key.get("n"));
+                    String signature = sign(bytes, key);
                     message = addSignature(message, signature);
                     //System.out.println(message);
                     //Sends final message to socket
@@ -331,7 +786,7 @@ public class Client {
                     //Hash message
                     byte[] bytes = SHA256Hash(message);
                     //Encrypt hashed message
-                    String signature = sign(bytes, (BigInteger) key.get("d"), (BigInteger) key.get("n"));
+                    String signature = sign(bytes, key);
                     message = addSignature(message, signature);
                     //System.out.println(message);
                     //Sends final message to socket
@@ -346,19 +801,16 @@ public class Client {
 
                     System.out.println("View the Blockchain.");
 
-                    //Create message in JSON format
-                    String message = createMessage(id, e, n, 3,0,"");
+                    //Create message in JSON format, streaming every block from the genesis block on
+                    String message = createMessage(id, e, n, 13,0,"");
                     //Hash message
                     byte[] bytes = SHA256Hash(message);
                     //Encrypt hashed message
-                    String signature = sign(bytes, (BigInteger) key.get("d"), (BigInteger) key.get("n"));
+                    String signature = sign(bytes, key);
                     message = addSignature(message, signature);
                     //System.out.println(message);
-                    //Send final message to socket
-                    String response = sendInput(message);
-                    JSONObject map = readJSON(response);
-
-                    System.out.println(map.get("output"));
+                    //Send final message to socket and print the blocks as they arrive
+                    streamInput(message, block -> System.out.println(block));
 
                 //If choosing option 4
                 }else if(num == 4){
@@ -389,7 +841,7 @@ public class Client {
                     //Hash message
                     byte[] bytes = SHA256Hash(message);
                     //Encrypt hashed message
-                    String signature = sign(bytes, (BigInteger) key.get("d"), (BigInteger) key.get("n"));
+                    String signature = sign(bytes, key);
                     message = addSignature(message, signature);
                     //System.out.println(message);
                     //Sends final message to socket
@@ -408,7 +860,7 @@ public class Client {
                     //Hash message
                     byte[] bytes = SHA256Hash(message);
                     //Encrypt hashed message
-                    String signature = sign(bytes, (BigInteger) key.get("d"), (BigInteger) key.get("n"));
+                    String signature = sign(bytes, key);
                     message = addSignature(message, signature);
                     //System.out.println(message);
                     //Sends final message to socket
@@ -421,10 +873,103 @@ public class Client {
                 }else if(num == 6) {
 
                     System.out.println("Exit.");
+                    disconnect();
                     System.exit(0);
 
+                //If choosing option 7
+                }else if(num == 7){
+
+                    //Prompt the user to enter difficulty and transaction
+                    System.out.println("Enter difficulty > 0.");
+                    int difficulty;
+                    while(true){
+                        String reply = input.nextLine();
+                        try{
+                            difficulty = Integer.parseInt(reply);
+                            if (difficulty <= 0){
+                                System.out.println("Difficulty must be a positive integer. Try again.");
+                                continue;
+                            }
+                            break;
+                        }catch(NumberFormatException ex){
+                            System.out.println("Difficulty must be a positive integer. Try again.");
+                        }
+                    }
+                    System.out.println("Enter transaction.");
+                    String transaction = input.nextLine();
+
+                    //Sends signed message to socket
+                    String response = sendInput(signMessage(createMessage(id, e, n, 7, difficulty, transaction), key));
+                    JSONObject map = readJSON(response);
+
+                    if(map.get("error") != null) System.out.println(map.get("error"));
+                    else System.out.println("Transaction accepted with receipt "+map.get("receipt"));
+
+                //If choosing option 8
+                }else if(num == 8){
+
+                    //Prompt the user to enter a receipt
+                    System.out.println("Enter receipt.");
+                    int receipt;
+                    while(true){
+                        String reply = input.nextLine();
+                        try{
+                            receipt = Integer.parseInt(reply);
+                            break;
+                        }catch(NumberFormatException ex){
+                            System.out.println("Invalid receipt. Try again.");
+                        }
+                    }
+
+                    //Wait up to 10 seconds for the transaction to be mined
+                    String response = sendInput(signMessage(createMessage(id, e, n, 8, receipt, "10000"), key));
+                    JSONObject map = readJSON(response);
+
+                    if(map.get("error") != null) System.out.println(map.get("error"));
+                    else if("confirmed".equals(map.get("status"))) System.out.println("Transaction is in block "+map.get("index"));
+                    else System.out.println("Transaction is "+map.get("status"));
+
+                //If choosing option 9
+                }else if(num == 9){
+
+                    //Prompt the user to enter a block id and a transaction
+                    System.out.println("Enter block ID.");
+                    int index;
+                    while(true){
+                        String reply = input.nextLine();
+                        try{
+                            index = Integer.parseInt(reply);
+                            break;
+                        }catch(NumberFormatException ex){
+                            System.out.println("Invalid index. Try again.");
+                        }
+                    }
+                    System.out.println("Enter transaction.");
+                    String transaction = input.nextLine();
+                    System.out.println("Enter the hash of block "+index+" from a source you trust.");
+                    String trusted = input.nextLine().trim();
+
+                    //Ask for the sibling hashes only, and check them here
+                    String response = sendInput(signMessage(createMessage(id, e, n, 9, index, transaction), key));
+                    JSONObject map = readJSON(response);
+
+                    if(map.get("error") != null){
+                        System.out.println(map.get("error"));
+                    }else{
+                        List<String> proof = new ArrayList<>();
+                        for(Object hash : (JSONArray) map.get("proof")) proof.add((String) hash);
+                        boolean valid = verifyProof(transaction, ((Long) map.get("position")).intValue(),
+                                ((Long) map.get("count")).intValue(), proof, (String) map.get("root"));
+                        //The root only counts if the header holding it hashes to the trusted block hash
+                        String hash = blockHash(map);
+                        boolean trustedRoot = hash != null && hash.equalsIgnoreCase(trusted);
+                        System.out.println("Proof with "+proof.size()+" hashes against root "+map.get("root")+": "+(valid ? "valid" : "invalid"));
+                        System.out.println("Header hashes to "+hash+": "+(trustedRoot ? "matches the trusted hash" : "does not match the trusted hash"));
+                        System.out.println("Transaction is "+(valid && trustedRoot ? "" : "not ")+"proven to be in block "+index);
+                    }
+
                 }else{
-                    System.out.println("Input is not a number from 0 to 6. Try again.");
+                    System.out.println("Input is not a number from 0 to 9. Try again.");
                 }
 
 
@@ -0,0 +1,101 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to put the blockchain server under load.
+ * A number of simulated users each send one request, wait for its response and send the next one,
+ * all through one BlockChainClient, and the latencies they see are summarized at the end.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.simple.JSONObject;
+
+public class LoadGenerator {
+
+    /**
+     * This method runs the simulated users and prints throughput and latency percentiles.
+     * @param client the client every user sends through
+     * @param users number of simulated users
+     * @param requests number of requests sent by every user
+     * @param type request type sent by the users
+     * @param difficulty first parameter of every request, the difficulty for requests that add transactions
+     */
+    public static void run(BlockChainClient client, int users, int requests, int type, int difficulty){
+
+        long[][] latencies = new long[users][];
+        AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        long t0 = System.nanoTime();
+        for(int u = 0; u < users; u++){
+            final int user = u;
+            Thread thread = new Thread(() -> {
+                long[] mine = new long[requests];
+                for(int r = 0; r < requests; r++){
+                    long start = System.nanoTime();
+                    try {
+                        JSONObject map = client.send(type, difficulty, "user" + user + "-tx" + r);
+                        if(map.get("error") != null) errors.incrementAndGet();
+                    } catch (IOException | RuntimeException error) {
+                        errors.incrementAndGet();
+                    }
+                    mine[r] = System.nanoTime() - start;
+                }
+                latencies[user] = mine;
+            }, "user-" + u);
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads){
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        long elapsed = System.nanoTime() - t0;
+
+        //Put every latency together to read the percentiles
+        long[] all = new long[users * requests];
+        for(int u = 0; u < users; u++){
+            System.arraycopy(latencies[u], 0, all, u * requests, requests);
+        }
+        Arrays.sort(all);
+        System.out.println(all.length + " requests of type " + type + " from " + users + " users in " + elapsed / 1000000 + " milliseconds, "
+                + errors.get() + " errors");
+        System.out.println("Throughput: " + (long) (all.length / (elapsed / 1e9)) + " requests per second");
+        System.out.println("Latency in milliseconds: p50 " + percentile(all, 0.50) + ", p95 " + percentile(all, 0.95)
+                + ", p99 " + percentile(all, 0.99) + ", max " + percentile(all, 1.0));
+    }
+
+    /**
+     * This method reads a percentile from sorted latencies.
+     * @param sorted latencies in nanoseconds, sorted
+     * @param fraction the percentile as a fraction
+     * @return the latency in milliseconds
+     */
+    private static double percentile(long[] sorted, double fraction){
+        if(sorted.length == 0) return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(fraction * sorted.length) - 1));
+        return Math.round(sorted[index] / 1000.0) / 1000.0;
+    }
+
+    /**
+     * This method runs a load test from the command line options of the client.
+     * @param args --users=N, --requests=N per user, --type=N, --difficulty=N, --connections=N and --timeout=N milliseconds
+     * @param host the host of the server
+     * @param port the port of the server
+     * @param key map containing the keys
+     */
+    public static void runFromOptions(String[] args, String host, int port, Map key){
+        try (BlockChainClient client = new BlockChainClient(host, port, Integer.parseInt(Client.option(args, "connections", "4")), key,
+                Long.parseLong(Client.option(args, "timeout", String.valueOf(BlockChainClient.DEFAULT_TIMEOUT))))) {
+            run(client, Integer.parseInt(Client.option(args, "users", "16")), Integer.parseInt(Client.option(args, "requests", "100")),
+                    Integer.parseInt(Client.option(args, "type", "0")), Integer.parseInt(Client.option(args, "difficulty", "2")));
+        }
+    }
+}
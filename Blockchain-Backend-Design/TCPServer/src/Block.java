@@ -5,20 +5,39 @@
  * that is used to be chained to the previously created block.
  */
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import org.json.simple.JSONObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.json.simple.JSONValue;
 
 public class Block {
 
     private int index;
     private java.sql.Timestamp timestamp;
+    //The transaction of the block, or the Merkle root of its transactions when it holds a list of them
     private String data;
+    private List<String> transactions = null;
     private int difficulty;
+    //The 256-bit target the hash has to be below, or null for a block that only needs difficulty leading zeros
+    private Target target = null;
     private String previousHash;
-    private BigInteger nonce = BigInteger.valueOf(0);
+    //The nonce lives in a primitive long while it fits, bigNonce is only set once the search runs past Long.MAX_VALUE
+    private long nonce = 0;
+    private BigInteger bigNonce = null;
+    //The chain holding this block and the position in it, used to tell the chain when the block changes
+    private BlockChain chain;
+    private int position;
 
     /**
      * This the Block constructor.
@@ -34,76 +53,231 @@ public class Block {
         this.difficulty = difficulty;
     }
 
+    /**
+     * This constructor creates a block holding several transactions.
+     * Only the Merkle root of the transactions goes into the header, it is kept as the data of the block.
+     * @param index This is the position within the chain. Genesis is at 0.
+     * @param timestamp This is the time this block was added.
+     * @param transactions These are the transactions to be included on the blockchain, at least one.
+     * @param difficulty This is the number of leftmost nibbles that need to be 0.
+     */
+    public Block(int index, java.sql.Timestamp timestamp, List<String> transactions, int difficulty){
+        this(index, timestamp, MerkleTree.root(transactions), difficulty);
+        this.transactions = Collections.unmodifiableList(new ArrayList<>(transactions));
+    }
+
+    /**
+     * This method records which chain holds this block so that changes to the block can be reported to it.
+     * @param chain the chain the block was added to
+     * @param position the position of the block within the chain
+     */
+    void attach(BlockChain chain, int position){
+        this.chain = chain;
+        this.position = position;
+    }
+
+    /**
+     * This method tells the chain holding this block that everything from the given position on has to be verified again.
+     * @param from the first position whose validity may have changed
+     */
+    private void changed(int from){
+        if(this.chain != null) this.chain.blockChanged(this.position, from);
+    }
+
     /**
      * This method computes a hash of the concatenation of the index, timestamp, data, previousHash, nonce, and difficulty.
+     * For a block with a target the difficulty is followed by a slash and the compact target in hexadecimal.
      * @return a String holding Hexadecimal characters
      */
     public java.lang.String calculateHash() {
+        return BlockHasher.toHex(calculateHashBytes());
+    }
 
-        try {
-            //Create a String concatenating all attributes
-            String string = Integer.toString(this.index);
-            string = string.concat(this.timestamp.toString());
-            string = string.concat(this.data);
-            string = string.concat(this.previousHash);
-            string = string.concat(this.nonce.toString());
-            string = string.concat(Integer.toString(this.difficulty));
-
-            //Hash the string
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            digest.update(string.getBytes("UTF-8"), 0, string.length());
-            byte[] hash = digest.digest();
-
-            //Convert the hash to hexdecimals
-            StringBuffer hexStringBuffer = new StringBuffer();
-            for (int i = 0; i < hash.length; i++) {
-                int halfbyte = (hash[i] >>> 4) & 0x0F;
-                int two_halfs = 0;
-                do {
-                    if ((0 <= halfbyte) && (halfbyte <= 9))
-                        hexStringBuffer.append((char) ('0' + halfbyte));
-                    else
-                        hexStringBuffer.append((char) ('a' + (halfbyte - 10)));
-                    halfbyte = hash[i] & 0x0F;
-                } while (two_halfs++ < 1);
-            }
-            String hexString = hexStringBuffer.toString();
-            return hexString;
+    /**
+     * This method computes the same hash as calculateHash but returns the raw digest.
+     * @return the raw SHA-256 digest of this block
+     */
+    public byte[] calculateHashBytes() {
+        if(this.bigNonce != null) return hasher().hash(this.bigNonce);
+        return hasher().hash(this.nonce);
+    }
 
-        }catch(NoSuchAlgorithmException | UnsupportedEncodingException ex){
-            System.out.println("Error");
-            System.exit(1);
-        }
-        return "";
+    /**
+     * This method creates a hasher holding the serialized header of this block.
+     * Only the nonce is filled in for each hash, so the hasher can be reused for every attempt while mining.
+     * @return a hasher for the current header
+     */
+    public BlockHasher hasher() {
+        return new BlockHasher(this.index, this.timestamp, this.data, this.previousHash, getDifficultyText());
+    }
+
+    /**
+     * This method returns the difficulty the way it goes into the hash of the block.
+     * @return the difficulty, followed by a slash and the compact target for a block with a target
+     */
+    public java.lang.String getDifficultyText() {
+        if(this.target == null) return Integer.toString(this.difficulty);
+        return this.difficulty + "/" + this.target;
+    }
+
+    /**
+     * This method checks whether a hash of this block is good enough.
+     * Blocks without a target need difficulty leading zeros, as blocks always did, the others a hash below the target.
+     * @param hash the raw digest
+     * @return whether the hash meets the difficulty or target of the block
+     */
+    public boolean meetsTarget(byte[] hash){
+        if(this.target == null) return BlockHasher.meetsDifficulty(hash, this.difficulty);
+        return this.target.isMetBy(hash);
     }
 
     /**
      * This method returns the nonce for this block. The nonce is a number that has been found to cause the hash of this block to have the correct number of leading hexadecimal zeroes.
+     * The search stops if the mining thread is interrupted, it checks every REPORT_EVERY attempts.
      * @return a BigInteger representing the nonce for this block.
+     * @throws CancellationException if the thread was interrupted, its interrupt flag stays set
      */
     public java.lang.String proofOfWork() {
 
-        String hexString;
-        int leading_zeros = 0;
+        BlockHasher hasher = hasher();
+        byte[] hash;
+        //Hashes computed since the last report to the hash rate meter
+        int attempts = 0;
+
+        //Search the long range first, this does not allocate anything per attempt
+        if(this.bigNonce == null){
+            long candidate = this.nonce;
+            while(true){
+                //Generate a hash with current attribute values
+                hash = hasher.hash(candidate);
+                if(++attempts == HashRate.REPORT_EVERY){
+                    HashRate.get().record(attempts);
+                    attempts = 0;
+                    checkInterrupted();
+                }
+                //Compare the hash with the difficulty, if requirement met, return this hexstring.
+                if (meetsTarget(hash)){
+                    HashRate.get().record(attempts);
+                    this.nonce = candidate;
+                    changed(this.position);
+                    return BlockHasher.toHex(hash);
+                }
+                if(candidate == Long.MAX_VALUE) break;
+                //Else, add 1 to nonce, and generate a new hash again.
+                candidate++;
+            }
+            this.bigNonce = BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE);
+        }
+
+        //Continue with BigInteger once the long range is exhausted
         while(true){
-            //Generate a hash with current attribute values
-            hexString = calculateHash();
-            leading_zeros = 0;
-            //Counting leading zeros
-            for(int i = 0; i < hexString.length(); i++){
-                if (hexString.charAt(i) == '0'){
-                    leading_zeros += 1;
-                }else break;
+            hash = hasher.hash(this.bigNonce);
+            if(++attempts == HashRate.REPORT_EVERY){
+                HashRate.get().record(attempts);
+                attempts = 0;
+                checkInterrupted();
             }
-            //Compare leading zeros with difficulty, if requirement met, return this hexstring.
-            if (leading_zeros >= this.difficulty){
-                return hexString;
+            if (meetsTarget(hash)){
+                HashRate.get().record(attempts);
+                changed(this.position);
+                return BlockHasher.toHex(hash);
             }
-            //Else, add 1 to nonce, and generate a new hash again.
-            this.nonce = this.nonce.add(BigInteger.valueOf(1));
+            this.bigNonce = this.bigNonce.add(BigInteger.ONE);
         }
     }
 
+    /**
+     * This method searches for a valid nonce with several workers at once.
+     * The nonce space is striped across the workers: worker k tries nonce+k, nonce+k+workers, nonce+k+2*workers, ...
+     * Every worker stops as soon as one of them finds a hash with enough leading zeros.
+     * The winning nonce is stored in this block, so the result is encoded exactly like a sequential proof of work.
+     * @param pool the executor the workers run on, it needs at least workers threads
+     * @param workers the number of workers to split the nonce space across
+     * @return the hash of this block with the winning nonce
+     * @throws CancellationException if the thread was interrupted before a nonce was found, its interrupt flag stays set
+     */
+    public java.lang.String proofOfWork(ExecutorService pool, int workers) {
+
+        //A single worker does not need the pool, and nonces past the long range are searched sequentially
+        if(workers <= 1 || pool == null || this.bigNonce != null) return proofOfWork();
+
+        final long start = this.nonce;
+        final AtomicBoolean found = new AtomicBoolean(false);
+        final AtomicLong winningNonce = new AtomicLong();
+        final AtomicReference<String> winningHash = new AtomicReference<>();
+
+        //Start one worker per stripe
+        List<Future<?>> futures = new ArrayList<>();
+        for(int k = 0; k < workers && start + k >= start; k++){
+            final long first = start + k;
+            futures.add(pool.submit(() -> {
+                //Each worker has its own header buffer
+                BlockHasher hasher = hasher();
+                long candidate = first;
+                int attempts = 0;
+                try {
+                    //Stop as soon as any worker has found a valid hash
+                    while(!found.get()){
+                        byte[] hash = hasher.hash(candidate);
+                        if(++attempts == HashRate.REPORT_EVERY){
+                            HashRate.get().record(attempts);
+                            attempts = 0;
+                        }
+                        if(meetsTarget(hash)){
+                            //Only the first worker to get here wins
+                            if(found.compareAndSet(false, true)){
+                                winningNonce.set(candidate);
+                                winningHash.set(BlockHasher.toHex(hash));
+                            }
+                            return;
+                        }
+                        //Stop this stripe when the next nonce would overflow the long range
+                        if(candidate > Long.MAX_VALUE - workers) return;
+                        candidate += workers;
+                    }
+                } finally {
+                    HashRate.get().record(attempts);
+                }
+            }));
+        }
+
+        //Wait for every worker to stop before touching the block again
+        boolean interrupted = false;
+        for(Future<?> future : futures){
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                found.set(true);
+                interrupted = true;
+            } catch (ExecutionException ex) {
+                found.set(true);
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+
+        if(winningHash.get() != null){
+            this.nonce = winningNonce.get();
+            changed(this.position);
+            return winningHash.get();
+        }
+
+        //Stop instead of mining on after the search was cancelled
+        if(interrupted) throw new CancellationException("Mining block " + this.index + " was interrupted");
+
+        //Nothing was found in the long range, keep searching past it
+        this.bigNonce = BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE);
+        return proofOfWork();
+    }
+
+    /**
+     * This method stops a sequential search once the mining thread has been interrupted.
+     * @throws CancellationException if the thread was interrupted, its interrupt flag stays set
+     */
+    private void checkInterrupted(){
+        if(Thread.currentThread().isInterrupted()) throw new CancellationException("Mining block " + this.index + " was interrupted");
+    }
+
     /**
      * Override Java's toString method and print out JSON representation of the block
      * @return A JSON representation of all of this block's data is returned.
@@ -111,15 +285,64 @@ public class Block {
     @Override
     public java.lang.String toString(){
 
-        JSONObject obj = new JSONObject();
-        obj.put("index", this.index);
-        obj.put("timestamp", this.timestamp.toString());
-        obj.put("Tx", this.data);
-        obj.put("difficulty", this.difficulty);
-        obj.put("nonce", this.nonce.toString());
-        obj.put("previousHash", this.previousHash);
+        StringWriter out = new StringWriter();
+        try {
+            writeJSON(out);
+        } catch (IOException ex) {
+            //A StringWriter does not throw
+        }
+        return out.toString();
+    }
 
-        return obj.toString();
+    /**
+     * This method writes the JSON representation of the block straight to a writer, without building a JSONObject.
+     * The keys come in the same order the JSONObject based representation used.
+     * @param out the writer to write to
+     * @throws IOException if the writer fails
+     */
+    public void writeJSON(Writer out) throws IOException {
+        out.write("{\"difficulty\":");
+        out.write(Integer.toString(this.difficulty));
+        if(this.target != null){
+            out.write(",\"target\":\"");
+            out.write(this.target.toString());
+            out.write("\"");
+        }
+        out.write(",\"Tx\":");
+        writeJSONString(out, this.data);
+        if(this.transactions != null){
+            out.write(",\"Txs\":[");
+            for(int i = 0; i < this.transactions.size(); i++){
+                if(i > 0) out.write(",");
+                writeJSONString(out, this.transactions.get(i));
+            }
+            out.write("]");
+        }
+        out.write(",\"previousHash\":");
+        writeJSONString(out, this.previousHash);
+        out.write(",\"index\":");
+        out.write(Integer.toString(this.index));
+        out.write(",\"nonce\":\"");
+        out.write(getNonce().toString());
+        out.write("\",\"timestamp\":");
+        writeJSONString(out, this.timestamp.toString());
+        out.write("}");
+    }
+
+    /**
+     * This method writes a quoted and escaped JSON String.
+     * @param out the writer to write to
+     * @param text the String, written as null if missing
+     * @throws IOException if the writer fails
+     */
+    static void writeJSONString(Writer out, String text) throws IOException {
+        if(text == null){
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        out.write(JSONValue.escape(text));
+        out.write('"');
     }
 
     /**
@@ -127,7 +350,22 @@ public class Block {
      * @return a BigInteger representing the nonce for this block.
      */
     public java.math.BigInteger getNonce(){
-        return this.nonce;
+        if(this.bigNonce != null) return this.bigNonce;
+        return BigInteger.valueOf(this.nonce);
+    }
+
+    /**
+     * Setter for nonce, used when a mined block is restored
+     * @param nonce
+     */
+    public void setNonce(java.math.BigInteger nonce){
+        if(nonce.bitLength() < 64){
+            this.nonce = nonce.longValue();
+            this.bigNonce = null;
+        }else{
+            this.bigNonce = nonce;
+        }
+        changed(this.position);
     }
 
     /**
@@ -144,6 +382,8 @@ public class Block {
      */
     public void setPreviousHash(java.lang.String previousHash){
         this.previousHash = previousHash;
+        //The link of the previous block is checked against this value
+        changed(this.position - 1);
     }
 
     /**
@@ -160,6 +400,51 @@ public class Block {
      */
     public void setDifficulty(int difficulty){
         this.difficulty = difficulty;
+        changed(this.position);
+    }
+
+    /**
+     * Getter for target
+     * @return the target of the block, or null if it only needs leading zeros
+     */
+    public Target getTarget(){
+        return this.target;
+    }
+
+    /**
+     * Setter for target, the difficulty becomes the whole number of leading zeros the target implies
+     * @param target the target, or null to go back to leading zeros
+     */
+    public void setTarget(Target target){
+        this.target = target;
+        if(target != null) this.difficulty = (int) Math.min(Integer.MAX_VALUE, Math.floor(target.getDifficulty() + 1e-9));
+        changed(this.position);
+    }
+
+    /**
+     * This method restores the target of a decoded block without touching its difficulty, the stored one is what was hashed.
+     * @param target the target of the block
+     */
+    void restoreTarget(Target target){
+        this.target = target;
+        changed(this.position);
+    }
+
+    /**
+     * This method returns the difficulty of the block as a possibly fractional number of hexadecimal digits.
+     * @return the difficulty of the target, or the whole difficulty for a block without one
+     */
+    public double getFineDifficulty(){
+        if(this.target == null) return this.difficulty;
+        return this.target.getDifficulty();
+    }
+
+    /**
+     * This method returns the expected number of hashes it takes to mine this block.
+     * @return 16 to the power of the difficulty
+     */
+    public double getWork(){
+        return Math.pow(16, getFineDifficulty());
     }
 
     /**
@@ -176,6 +461,7 @@ public class Block {
      */
     public void setIndex(int index){
         this.index = index;
+        changed(this.position);
     }
 
     /**
@@ -192,6 +478,7 @@ public class Block {
      */
     public void setTimestamp(java.sql.Timestamp timestamp){
         this.timestamp = timestamp;
+        changed(this.position);
     }
 
     /**
@@ -207,7 +494,94 @@ public class Block {
      * @param data
      */
     public void setData(java.lang.String data){
+        List<String> old = getContents();
         this.data = data;
+        changed(this.position);
+        if(this.chain != null) this.chain.contentsChanged(this.position, old, getContents());
+    }
+
+    /**
+     * This method returns the transactions of the block whether it holds a list of them or a single one.
+     * @return the transactions of the block
+     */
+    public List<String> getContents(){
+        if(this.transactions != null) return this.transactions;
+        return Collections.singletonList(this.data);
+    }
+
+    /**
+     * Getter for transactions
+     * @return the transactions of the block, or null for a block holding a single transaction as its data
+     */
+    public List<String> getTransactions(){
+        return this.transactions;
+    }
+
+    /**
+     * This method restores the transactions of a decoded block without touching its data, so a stored mismatch stays visible.
+     * @param transactions the transactions of the block
+     */
+    void restoreTransactions(List<String> transactions){
+        List<String> old = getContents();
+        this.transactions = Collections.unmodifiableList(new ArrayList<>(transactions));
+        changed(this.position);
+        if(this.chain != null) this.chain.contentsChanged(this.position, old, this.transactions);
+    }
+
+    /**
+     * Setter for one transaction, the Merkle root in the data is left alone so the change shows up as a mismatch
+     * @param position position of the transaction
+     * @param transaction the new transaction
+     */
+    public void setTransaction(int position, java.lang.String transaction){
+        List<String> old = this.transactions;
+        List<String> transactions = new ArrayList<>(old);
+        transactions.set(position, transaction);
+        this.transactions = Collections.unmodifiableList(transactions);
+        changed(this.position);
+        if(this.chain != null) this.chain.contentsChanged(this.position, old, this.transactions);
+    }
+
+    /**
+     * This method checks that the data of the block is the Merkle root of its transactions.
+     * @return whether the transactions match the header, always true for a block without a list of transactions
+     */
+    public boolean hasValidMerkleRoot(){
+        return this.transactions == null || MerkleTree.root(this.transactions).equals(this.data);
+    }
+
+    /**
+     * This method sets the data of the block to the Merkle root of its transactions, it does nothing for a block without them.
+     */
+    public void updateMerkleRoot(){
+        if(this.transactions != null) setData(MerkleTree.root(this.transactions));
+    }
+
+    /**
+     * This method copies the header of the block into a block that does not belong to any chain,
+     * so it can be mined without touching this block.
+     * @return a copy of the header with the same nonce
+     */
+    public Block copyHeader(){
+        Block copy = new Block(this.index, this.timestamp, this.data, this.difficulty);
+        copy.target = this.target;
+        copy.previousHash = this.previousHash;
+        copy.nonce = this.nonce;
+        copy.bigNonce = this.bigNonce;
+        return copy;
+    }
+
+    /**
+     * This method checks whether another block has the same header apart from the nonce.
+     * @param other the other block
+     * @return whether both blocks hash the same way for the same nonce
+     */
+    public boolean sameHeader(Block other){
+        return this.index == other.index && this.difficulty == other.difficulty
+                && java.util.Objects.equals(this.target, other.target)
+                && java.util.Objects.equals(this.timestamp, other.timestamp)
+                && java.util.Objects.equals(this.data, other.data)
+                && java.util.Objects.equals(this.previousHash, other.previousHash);
     }
 
     public static void main(java.lang.String[] args){
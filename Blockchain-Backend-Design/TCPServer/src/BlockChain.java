@@ -4,21 +4,64 @@
  * It contains a mechanism to store, chain, verify, modify and repair the blockchain.
  */
 
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.sql.Timestamp;
 import java.time.Clock;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class BlockChain {
 
     ArrayList<Block> blocks;
     String chainHash;
+    //Guards the blocks and chainHash when the chain is shared between threads
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    //Where the chain is persisted, null for a chain that only lives in memory
+    private BlockStore store;
+    //Number of workers used to search for a nonce, 1 means mining on the calling thread
+    private int miningThreads = 1;
+    private ExecutorService miningPool;
+    //Blocks before this position are known to be valid and do not need to be hashed again
+    //Validations run concurrently under the read lock, they all see the same blocks so any of their results is correct
+    private volatile int verifiedPrefix = 0;
+    //Whether validation splits the chain into ranges hashed on a fork-join pool
+    private boolean parallelVerification = false;
+    //Positions of blocks by hash and by transaction, guarded by the lock like the blocks
+    final ChainIndex index = new ChainIndex();
+    //Picks the difficulty of mined blocks from recent block times, null to use the requested difficulty
+    private volatile DifficultyRetarget retarget;
+    //Lowest difficulty a block from another node may have, in hexadecimal digits
+    private volatile int minDifficulty = 1;
+    //How far the difficulty of a block from another node may be from the one the retargeting rule allows
+    private static final double DIFFICULTY_TOLERANCE = 1e-6;
+    //The latest background repair
+    private RepairJob repairJob;
+    //Transactions waiting to be packed into blocks, null if nothing feeds this chain in the background
+    private volatile Mempool mempool;
+    //Other nodes new blocks are announced to, null for a chain that is not replicated
+    private volatile PeerNode peers;
+
+    //Results of checking a single block
+    private static final int BLOCK_VALID = 0;
+    private static final int IMPROPER_HASH = 1;
+    private static final int BROKEN_LINK = 2;
+    private static final int BAD_TRANSACTIONS = 3;
+    //Results of offering a block received from a peer
+    static final int OFFER_ACCEPTED = 0;
+    static final int OFFER_KNOWN = 1;
+    static final int OFFER_NEEDS_SYNC = 2;
+    static final int OFFER_REJECTED = 3;
+    //Number of blocks checked by one fork-join task
+    private static final int VERIFY_RANGE = 256;
 
     /**
      *This constructor initalizes an array to store the blocks in and sets the chain hash to the empty string.
@@ -28,6 +71,158 @@ public class BlockChain {
         this.chainHash = "";
     }
 
+    /**
+     * This constructor recovers a chain from a block store and keeps persisting every change to it.
+     * The recovered blocks are not trusted until the next validation hashes them.
+     * Blocks written after the last chain hash was recorded, by an append that did not finish, are dropped from the store.
+     * @param store the store holding the chain
+     * @throws IOException if the store cannot be read
+     */
+    public BlockChain(BlockStore store) throws IOException {
+        this();
+        List<Block> stored = store.readAll();
+        this.chainHash = store.readChainHash();
+        int committed = committedSize(stored, this.chainHash);
+        if(committed < stored.size()){
+            System.out.println("Dropping " + (stored.size() - committed) + " blocks written after the last commit");
+            store.truncate(committed);
+            store.sync();
+            stored = stored.subList(0, committed);
+        }
+        for(Block block : stored){
+            block.attach(this, this.blocks.size());
+            this.blocks.add(block);
+        }
+        this.store = store;
+        rebuildIndex();
+    }
+
+    /**
+     * This method finds how many stored blocks were committed, for a store whose last append may not have finished.
+     * An append writes the block before the chain hash, so a block left over by a crash points at the recorded chain hash
+     * and the block before it hashes to it. A chain whose tip merely fails to hash to the chain hash is kept whole.
+     * @param stored the stored blocks, in order
+     * @param chainHash the recorded chain hash
+     * @return the number of blocks up to the one the chain hash names
+     */
+    static int committedSize(List<Block> stored, String chainHash){
+        int size = stored.size();
+        if(size == 0 || stored.get(size - 1).calculateHash().equals(chainHash)) return size;
+        for(int next = size - 1; next >= 0; next--){
+            if(!chainHash.equals(stored.get(next).getPreviousHash())) continue;
+            if(next == 0 ? chainHash.isEmpty() : stored.get(next - 1).calculateHash().equals(chainHash)) return next;
+        }
+        return size;
+    }
+
+    /**
+     * This method indexes every block of the chain again from scratch.
+     */
+    private void rebuildIndex(){
+        this.index.clear();
+        for(int i = 0; i < getChainSize(); i++){
+            this.index.add(i, hashOf(i), this.blocks.get(i).getContents());
+        }
+    }
+
+    /**
+     * This method is called by a block whenever its transactions change, so they can be found under their new hashes.
+     * @param position position of the changed block
+     * @param oldContents the transactions the block held
+     * @param newContents the transactions the block holds now
+     */
+    void contentsChanged(int position, List<String> oldContents, List<String> newContents){
+        this.index.replace(position, oldContents, newContents);
+    }
+
+    /**
+     * This method lowers the verified watermark so that every block from the given position on is hashed again by the next validation.
+     * Blocks call it whenever one of their fields changes.
+     * @param from the first position whose validity may have changed
+     */
+    void invalidateFrom(int from){
+        this.verifiedPrefix = Math.min(this.verifiedPrefix, Math.max(0, from));
+    }
+
+    /**
+     * This method is called by a block whenever one of its fields changes.
+     * It lowers the verified watermark and writes the new version of the block to the store.
+     * @param position position of the changed block
+     * @param from the first position whose validity may have changed
+     */
+    void blockChanged(int position, int from){
+        invalidateFrom(from);
+        if(this.store != null){
+            try {
+                this.store.write(position, this.blocks.get(position));
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+    }
+
+    /**
+     * Setter for chainHash, the tip block is checked against it so it has to be verified again
+     * @param chainHash hash of the latest block
+     */
+    private void setChainHash(String chainHash){
+        this.chainHash = chainHash;
+        invalidateFrom(getChainSize()-1);
+        if(this.store != null){
+            try {
+                this.store.writeChainHash(chainHash);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+    }
+
+    /**
+     * This method sets how many workers search for a nonce when a block is mined.
+     * With more than one worker the nonce space is split across a pool of daemon threads.
+     * @param threads number of mining workers, values below 1 are treated as 1
+     */
+    public synchronized void setMiningThreads(int threads){
+        threads = Math.max(1, threads);
+        if(threads == this.miningThreads) return;
+        //Replace the pool so it always has one thread per worker
+        if(this.miningPool != null){
+            this.miningPool.shutdown();
+            this.miningPool = null;
+        }
+        if(threads > 1){
+            this.miningPool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "miner");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.miningThreads = threads;
+    }
+
+    /**
+     * Getter for miningThreads
+     * @return number of mining workers
+     */
+    public int getMiningThreads(){
+        return this.miningThreads;
+    }
+
+    /**
+     * This method mines the given block with the configured number of workers.
+     * @param block the block to mine
+     * @return the hash of the mined block
+     */
+    String mine(Block block){
+        ExecutorService pool;
+        int threads;
+        synchronized (this){
+            pool = this.miningPool;
+            threads = this.miningThreads;
+        }
+        return block.proofOfWork(pool, threads);
+    }
+
     /**
      *This method returns the current time in timestamp
      * @return the current system time
@@ -53,40 +248,428 @@ public class BlockChain {
     }
 
     /**
-     * This method computes hashes for one second using a simple string - "00000000" to hash.
+     * This method returns the hash rate of the computer holding this chain without hashing anything.
+     * It is measured from the blocks being mined, or by a short benchmark when nothing is mined, see HashRate.
      * @return hashes per second of the computer holding this chain.
      */
     public int hashesPerSecond(){
-        long t0 = System.currentTimeMillis();
-        String string = "00000000";
-        int count = 0;
-        //In one second, count number of hashes computed
-        while(!(System.currentTimeMillis()-t0 >= 1000)){
-            try {
-                //Hash the string "00000000"
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                digest.update(string.getBytes("UTF-8"), 0, string.length());
-                byte[] hash = digest.digest();
-                count += 1;
-            }catch(NoSuchAlgorithmException | UnsupportedEncodingException ex){
-                System.out.println("Error");
-                System.exit(1);
-            }
-        }
-        return count;
+        return HashRate.get().getHashesPerSecond();
     }
 
     /**
      * This method adds the newly created block to the blockchain
+     * It does not take the lock, callers sharing the chain between threads use mineBlock instead.
      * @param newBlock
      */
     public void addBlock(Block newBlock){
         //Chain the blocks
         newBlock.setPreviousHash(this.chainHash);
         //Generate hash for the new block and assign it to the most recent chainHash
-        this.chainHash = newBlock.proofOfWork();
+        append(newBlock, mine(newBlock));
+    }
+
+    /**
+     * This method makes new blocks take their difficulty from the recent block times instead of the caller.
+     * @param retarget the retargeting rule, or null to use the difficulty the caller asks for
+     */
+    public void setRetarget(DifficultyRetarget retarget){
+        this.retarget = retarget;
+    }
+
+    /**
+     * Setter for minDifficulty
+     * @param minDifficulty lowest difficulty accepted for blocks from other nodes, in hexadecimal digits
+     */
+    public void setMinDifficulty(int minDifficulty){
+        this.minDifficulty = minDifficulty;
+    }
+
+    /**
+     * This method checks that a block from another node has the difficulty the retargeting rule gives after the blocks before it.
+     * Without a rule, or for the genesis block, any difficulty is allowed here.
+     * The caller holds at least the read lock when the blocks before are the chain.
+     * @param before the blocks before it, in order
+     * @param block the block
+     * @return whether the rule allows the difficulty of the block
+     */
+    boolean followsRetarget(List<Block> before, Block block){
+        DifficultyRetarget retarget = this.retarget;
+        if(retarget == null || before.isEmpty()) return true;
+        double difficulty = block.getFineDifficulty();
+        return Math.abs(retarget.next(before, difficulty) - difficulty) <= DIFFICULTY_TOLERANCE;
+    }
+
+    /**
+     * This method works out the difficulty the next block gets for a requested difficulty.
+     * @param requested the difficulty asked for
+     * @return the difficulty the next block would be mined with, in hexadecimal digits
+     */
+    public double nextDifficulty(double requested){
+        DifficultyRetarget retarget = this.retarget;
+        this.lock.readLock().lock();
+        try {
+            if(retarget == null || getChainSize() == 0) return requested;
+            return retarget.next(this.blocks, requested);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method creates, mines and adds a new block while other threads keep using the chain.
+     * The tip is read under the read lock and the proof of work runs without holding any lock.
+     * The block is only added if the tip is still the one it was mined on, otherwise it is mined again on the new tip.
+     * With a retargeting rule set, the requested difficulty only nudges the difficulty the block gets.
+     * @param data the transaction of the new block
+     * @param difficulty the difficulty of the new block
+     * @return the block that was added
+     */
+    public Block mineBlock(String data, int difficulty){
+        return mineBlock(data, null, difficulty);
+    }
+
+    /**
+     * This method mines a new block like mineBlock, for a difficulty that may be a fraction of a hexadecimal digit.
+     * A fractional difficulty gives the block a 256-bit target, a whole one the usual leading zeros.
+     * @param data the transaction of the new block
+     * @param difficulty the difficulty of the new block in hexadecimal digits
+     * @return the block that was added
+     */
+    public Block mineBlock(String data, double difficulty){
+        return mineBlock(data, null, difficulty);
+    }
+
+    /**
+     * This method creates, mines and adds a new block holding several transactions, like mineBlock for a single one.
+     * @param transactions the transactions of the new block, at least one
+     * @param difficulty the difficulty of the new block
+     * @return the block that was added
+     */
+    public Block mineBlock(List<String> transactions, int difficulty){
+        return mineBlock(null, transactions, difficulty);
+    }
+
+    /**
+     * This method mines a new block holding either a single transaction or a list of them.
+     * @param data the transaction of the new block, used when transactions is null
+     * @param transactions the transactions of the new block, or null
+     * @param difficulty the difficulty of the new block in hexadecimal digits
+     * @return the block that was added
+     */
+    private Block mineBlock(String data, List<String> transactions, double difficulty){
+
+        long t0 = System.nanoTime();
+        for(int retries = 0; ; retries++){
+
+            //Remember the tip the new block is built on, and pick its difficulty from the blocks before it
+            int index;
+            String tip;
+            double blockDifficulty = difficulty;
+            this.lock.readLock().lock();
+            try {
+                index = getChainSize();
+                tip = this.chainHash;
+                DifficultyRetarget retarget = this.retarget;
+                if(retarget != null && index > 0) blockDifficulty = retarget.next(this.blocks, difficulty);
+            } finally {
+                this.lock.readLock().unlock();
+            }
+
+            //Mine without holding the lock, only a fractional difficulty needs a target
+            int wholeDifficulty = (int) Math.floor(blockDifficulty);
+            Block newBlock = transactions == null ? new Block(index, getTime(), data, wholeDifficulty)
+                    : new Block(index, getTime(), transactions, wholeDifficulty);
+            if(blockDifficulty != wholeDifficulty) newBlock.setTarget(Target.fromDifficulty(blockDifficulty));
+            newBlock.setPreviousHash(tip);
+            String hash = mine(newBlock);
+
+            //Commit only if nobody added a block in the meantime
+            boolean added = false;
+            this.lock.writeLock().lock();
+            try {
+                if(getChainSize() == index && this.chainHash.equals(tip)){
+                    append(newBlock, hash);
+                    added = true;
+                }
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+            if(added){
+                Metrics.get().recordMining(System.nanoTime() - t0, retries);
+                announce(newBlock, hash);
+                return newBlock;
+            }
+        }
+    }
+
+    /**
+     * This method tells the peers about a new tip, if the chain is replicated.
+     * @param block the new latest block
+     * @param hash the hash of the block
+     */
+    private void announce(Block block, String hash){
+        PeerNode peers = this.peers;
+        if(peers != null) peers.announce(block, hash);
+    }
+
+    /**
+     * This method returns the hash of a block the way the chain records it: as the previousHash of the next block,
+     * or the chain hash for the latest block. The caller holds at least the read lock.
+     * @param i position of the block
+     * @return the recorded hash of the block
+     */
+    String hashOf(int i){
+        return i != getChainSize()-1 ? this.blocks.get(i+1).getPreviousHash() : this.chainHash;
+    }
+
+    /**
+     * This method adds up the expected work of every block, the chain with the most work wins between peers.
+     * @return the expected number of hashes it took to mine the chain
+     */
+    public double getTotalWork(){
+        this.lock.readLock().lock();
+        try {
+            return getWork(0, getChainSize());
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method adds up the expected work of a range of blocks. The caller holds at least the read lock.
+     * @param from first position
+     * @param to position after the last block
+     * @return the expected number of hashes it took to mine the range
+     */
+    private double getWork(int from, int to){
+        double work = 0;
+        for(int i = from; i < to; i++){
+            work += this.blocks.get(i).getWork();
+        }
+        return work;
+    }
+
+    /**
+     * This method decides between two branches: the one with more work wins, and the lower tip hash if both have the same work,
+     * so nodes that mined competing blocks at the same time all settle on the same one.
+     * @param work work of the new branch
+     * @param tipHash tip hash of the new branch
+     * @param currentWork work of the current branch
+     * @param currentTipHash tip hash of the current branch
+     * @return whether the new branch should replace the current one
+     */
+    static boolean isBetter(double work, String tipHash, double currentWork, String currentTipHash){
+        if(work != currentWork) return work > currentWork;
+        return tipHash != null && tipHash.compareTo(currentTipHash) < 0;
+    }
+
+    /**
+     * This method checks a run of blocks received from another node without touching the chain.
+     * Every block needs the right index, at least the minimum difficulty, a hash meeting its difficulty,
+     * the right Merkle root and a previousHash pointing at the block before it.
+     * Whether the difficulty follows the retargeting rule is checked when the blocks are added, see replaceFrom.
+     * @param blocks the blocks, in order
+     * @param from the index of the first block
+     * @param previousHash the hash the first block has to point at
+     * @return the hash of every block, or null if any block is illegal
+     */
+    List<String> verifyBlocks(List<Block> blocks, int from, String previousHash){
+        List<String> hashes = new ArrayList<>(blocks.size());
+        for(int k = 0; k < blocks.size(); k++){
+            Block block = blocks.get(k);
+            if(block.getIndex() != from + k || !java.util.Objects.equals(block.getPreviousHash(), previousHash)) return null;
+            //A block declaring no difficulty would pass any hash, and add work for free
+            if(!(block.getFineDifficulty() >= this.minDifficulty)) return null;
+            byte[] hash = block.calculateHashBytes();
+            if(!block.meetsTarget(hash) || !block.hasValidMerkleRoot()) return null;
+            previousHash = BlockHasher.toHex(hash);
+            hashes.add(previousHash);
+        }
+        return hashes;
+    }
+
+    /**
+     * This method offers a single block announced by a peer.
+     * It is added if it extends the current tip, otherwise the caller is told whether the peer is worth syncing with.
+     * @param block the announced block
+     * @return OFFER_ACCEPTED, OFFER_KNOWN, OFFER_NEEDS_SYNC or OFFER_REJECTED
+     */
+    int offerBlock(Block block){
+
+        //Check the proof of work before taking any lock
+        if(!(block.getFineDifficulty() >= this.minDifficulty)) return OFFER_REJECTED;
+        byte[] bytes = block.calculateHashBytes();
+        if(!block.meetsTarget(bytes) || !block.hasValidMerkleRoot()) return OFFER_REJECTED;
+        String hash = BlockHasher.toHex(bytes);
+
+        this.lock.writeLock().lock();
+        try {
+            int i = block.getIndex();
+            if(i < 0) return OFFER_REJECTED;
+            if(i < getChainSize() && hashOf(i).equals(hash)) return OFFER_KNOWN;
+            //A block on another branch or past the tip needs the blocks before it
+            if(i != getChainSize() || !this.chainHash.equals(block.getPreviousHash())) return OFFER_NEEDS_SYNC;
+            if(!followsRetarget(this.blocks, block)) return OFFER_REJECTED;
+            append(block, hash);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        announce(block, hash);
+        return OFFER_ACCEPTED;
+    }
+
+    /**
+     * This method fills an empty chain with blocks that were checked elsewhere, such as a snapshot.
+     * The blocks count as verified, so the next validation does not hash them again.
+     * @param restored the blocks, in order
+     * @param tipHash the hash of the latest block
+     * @throws IllegalStateException if the chain is not empty
+     */
+    void restore(List<Block> restored, String tipHash){
+        this.lock.writeLock().lock();
+        try {
+            if(getChainSize() != 0) throw new IllegalStateException("Only an empty chain can be restored");
+            //Persist the blocks before the chain hash that points at the latest one, and before the chain takes them
+            if(this.store != null){
+                try {
+                    for(Block block : restored){
+                        this.store.append(block);
+                    }
+                    this.store.writeChainHash(tipHash);
+                } catch (IOException error) {
+                    rollBack(0);
+                    throw new UncheckedIOException(error);
+                }
+            }
+            for(Block block : restored){
+                block.attach(this, this.blocks.size());
+                this.blocks.add(block);
+            }
+            this.chainHash = tipHash;
+            rebuildIndex();
+            this.verifiedPrefix = getChainSize();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This method replaces every block from a position on with blocks fetched from a peer, if that gives the chain more work.
+     * The blocks have been checked with verifyBlocks, here only their place in the chain is checked again,
+     * since the chain may have changed while they were fetched.
+     * @param fork position of the first block to replace, at most the chain size
+     * @param newBlocks the blocks that take their place
+     * @param hashes the hash of every new block
+     * @return whether the blocks were taken
+     */
+    boolean replaceFrom(int fork, List<Block> newBlocks, List<String> hashes){
+
+        if(newBlocks.isEmpty()) return false;
+
+        this.lock.writeLock().lock();
+        try {
+            if(fork > getChainSize()) return false;
+            String previousHash = fork == 0 ? "" : hashOf(fork - 1);
+            if(!previousHash.equals(newBlocks.get(0).getPreviousHash())) return false;
+
+            //Every block needs the difficulty the retargeting rule gives after the blocks before it
+            if(this.retarget != null){
+                List<Block> before = new ArrayList<>(this.blocks.subList(0, fork));
+                for(Block block : newBlocks){
+                    if(!followsRetarget(before, block)) return false;
+                    before.add(block);
+                }
+            }
+
+            //Only switch to a branch that beats the current one
+            double work = 0;
+            for(Block block : newBlocks){
+                work += block.getWork();
+            }
+            if(!isBetter(work, hashes.get(hashes.size() - 1), getWork(fork, getChainSize()), this.chainHash)) return false;
+
+            //Drop the old branch, the index is rebuilt for what is left
+            List<Block> dropped = new ArrayList<>(this.blocks.subList(fork, getChainSize()));
+            if(fork < getChainSize()){
+                //Shorten the store first, a failure leaves the old branch in memory and on disk
+                if(this.store != null){
+                    try {
+                        this.store.truncate(fork);
+                        this.store.writeChainHash(previousHash);
+                    } catch (IOException error) {
+                        throw new UncheckedIOException(error);
+                    }
+                }
+                for(int i = fork; i < getChainSize(); i++){
+                    this.blocks.get(i).attach(null, 0);
+                }
+                this.blocks.subList(fork, getChainSize()).clear();
+                this.chainHash = previousHash;
+                rebuildIndex();
+            }
+            this.verifiedPrefix = Math.min(this.verifiedPrefix, fork);
+
+            for(int k = 0; k < newBlocks.size(); k++){
+                append(newBlocks.get(k), hashes.get(k));
+            }
+
+            //Transactions of the old branch that the new one does not hold are mined again
+            Mempool mempool = this.mempool;
+            if(mempool != null && !dropped.isEmpty()) mempool.reorganize(fork, dropped, newBlocks);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        announce(newBlocks.get(newBlocks.size() - 1), hashes.get(hashes.size() - 1));
+        return true;
+    }
+
+    /**
+     * This method checks whether a block is still part of the chain. The caller holds at least the read lock.
+     * @param block the block
+     * @return whether the chain holds this very block at its index
+     */
+    boolean holds(Block block){
+        int i = block.getIndex();
+        return i >= 0 && i < getChainSize() && this.blocks.get(i) == block;
+    }
+
+    /**
+     * This method adds a mined block to the end of the chain and makes its hash the chain hash.
+     * The old tip stays verified because its hash is the previousHash of the new block.
+     * @param newBlock the mined block
+     * @param hash the hash of the mined block
+     */
+    private void append(Block newBlock, String hash){
+        //Persist the block before the chain hash that points at it, and both before the chain changes in memory,
+        //so a write that fails leaves the block out of memory and out of the store
+        if(this.store != null){
+            int stored = this.store.size();
+            try {
+                this.store.append(newBlock);
+                this.store.writeChainHash(hash);
+            } catch (IOException error) {
+                rollBack(stored);
+                throw new UncheckedIOException(error);
+            }
+        }
+        this.chainHash = hash;
         //Add it to the blockchain
+        newBlock.attach(this, this.blocks.size());
         this.blocks.add(newBlock);
+        this.index.add(this.blocks.size()-1, hash, newBlock.getContents());
+    }
+
+    /**
+     * This method takes the store back to the blocks and chain hash in memory after a failed write.
+     * @param stored number of blocks the store held before the write
+     */
+    private void rollBack(int stored){
+        try {
+            this.store.truncate(stored);
+            this.store.writeChainHash(this.chainHash);
+        } catch (IOException error) {
+            System.out.println("IO Exception:" + error.getMessage());
+        }
     }
 
     /**
@@ -96,128 +679,291 @@ public class BlockChain {
     @Override
     public java.lang.String toString(){
 
-        JSONObject obj = new JSONObject();
+        StringWriter out = new StringWriter();
+        try {
+            writeJSON(out);
+        } catch (IOException e) {
+            //A StringWriter does not throw
+        }
+        return out.toString();
+    }
+
+    /**
+     * This method streams the JSON representation of the blockchain to a writer one block at a time.
+     * Every block goes on its own line, so the output is readable without building the whole chain in memory.
+     * @param out the writer to write to
+     * @throws IOException if the writer fails
+     */
+    public void writeJSON(Writer out) throws IOException {
 
+        out.write("{\"ds_chain\":[");
         //For every block in the blockchain
-        ArrayList<JSONObject> items = new ArrayList<>();
         for(int i = 0; i < getChainSize(); i++){
-            JSONParser parser = new JSONParser();
-            try {
-                //Concatenate the JSON representation
-                JSONObject item = (JSONObject) parser.parse(this.blocks.get(i).toString());
-                items.add(item);
-            } catch (ParseException e) {
-                e.printStackTrace();
-            }
+            if(i > 0) out.write(",\n");
+            this.blocks.get(i).writeJSON(out);
         }
+        out.write("],\n\"chainHash\":");
+        Block.writeJSONString(out, this.chainHash);
+        out.write("}");
+    }
 
-        obj.put("ds_chain", items);
-        obj.put("chainHash", this.chainHash);
-        String raw = obj.toString();
-        String pretty = raw.replace("},","},\n");
-        pretty = pretty.replace("],","],\n");
-        return pretty;
+    /**
+     * This method checks a single block: its hash must meet its difficulty and match the previousHash stored in the next block,
+     * or the chain hash for the latest block.
+     * It only reads the chain, so several blocks can be checked at the same time.
+     * @param i position of the block
+     * A block holding a list of transactions must also hold their Merkle root.
+     * @return BLOCK_VALID, IMPROPER_HASH, BROKEN_LINK or BAD_TRANSACTIONS
+     */
+    private int checkBlock(int i){
+
+        Block currentBlock = this.blocks.get(i);
+        //Compute hash of the current block
+        byte[] hash = currentBlock.calculateHashBytes();
+
+        //If leading zeros requirements not met
+        if(!currentBlock.meetsTarget(hash)) return IMPROPER_HASH;
+
+        //If blocks are not properly chained
+        if(i != getChainSize()-1){
+            if(!BlockHasher.equalsHex(hash, this.blocks.get(i+1).getPreviousHash())) return BROKEN_LINK;
+        }else{
+            if(!BlockHasher.equalsHex(hash, this.chainHash)) return BROKEN_LINK;
+        }
+
+        //If the transactions were changed after the block was mined
+        if(!currentBlock.hasValidMerkleRoot()) return BAD_TRANSACTIONS;
+        return BLOCK_VALID;
     }
 
     /**
-     * This method checks for any illegal block and return true if the blockchain is valid, else false
-     * @return boolean value signifying whether the chain is valid
+     * This method finds the first illegal block at or after the given position.
+     * @param from position to start checking at
+     * @return position of the first illegal block, or -1 if every block from there on is valid
      */
-    public boolean isChainValid(){
+    private int findFirstInvalid(int from){
 
         int chain_size = getChainSize();
 
-        //For every block in the blockchain
-        for(int i = 0; i < chain_size; i++){
-
-            Block currentBlock = this.blocks.get(i);
-            //Compute hash of the current block
-            String hash = currentBlock.calculateHash();
-            //Counting leading zeros
-            int leading_zeros = 0;
-            int len = hash.length();
-            for(int k = 0; k < len; k++){
-                if (hash.charAt(k) == '0'){
-                    leading_zeros += 1;
-                }else break;
-            }
+        //Hash ranges of blocks on the fork-join pool
+        if(this.parallelVerification && chain_size - from > VERIFY_RANGE){
+            return ForkJoinPool.commonPool().invoke(new VerifyTask(from, chain_size));
+        }
 
-            String zeros = "0";
-            zeros = zeros.repeat(currentBlock.getDifficulty());
-            //If leading zeros requirements not met
-            if(currentBlock.getDifficulty() > leading_zeros){
-                //Return false
-                System.out.println("..Improper hash on node "+i+" Does not begin with "+zeros);
-                return false;
-            }
+        //Check the blocks one after another
+        for(int i = from; i < chain_size; i++){
+            if(checkBlock(i) != BLOCK_VALID) return i;
+        }
+        return -1;
+    }
 
-            //If blocks are not properly chained, return false
-            if(i != chain_size-1){
-                if(!hash.equals(this.blocks.get(i+1).getPreviousHash())) return false;
-            }else{
-                if(!hash.equals(this.chainHash)) return false;
+    /**
+     * This task checks a range of blocks and returns the lowest illegal position in it.
+     * The last block of a range is compared with the previousHash stored in the first block of the next range,
+     * so the links at range boundaries are checked as well.
+     */
+    private class VerifyTask extends RecursiveTask<Integer> {
+
+        //Tasks are never serialized, the id only keeps the compiler quiet
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        VerifyTask(int from, int to){
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute(){
+
+            //Small ranges are checked directly
+            if(to - from <= VERIFY_RANGE){
+                for(int i = from; i < to; i++){
+                    if(checkBlock(i) != BLOCK_VALID) return i;
+                }
+                return -1;
             }
+
+            //Split the range in two and check both halves at the same time
+            int middle = (from + to) >>> 1;
+            VerifyTask right = new VerifyTask(middle, to);
+            right.fork();
+            int leftResult = new VerifyTask(from, middle).compute();
+            int rightResult = right.join();
+            //An illegal block in the left half always comes first
+            return leftResult >= 0 ? leftResult : rightResult;
         }
+    }
 
-        return true;
+    /**
+     * Setter for parallelVerification
+     * @param parallelVerification whether validation hashes ranges of blocks on all cores
+     */
+    public void setParallelVerification(boolean parallelVerification){
+        this.parallelVerification = parallelVerification;
     }
 
     /**
-     *This routine repairs the chain. It checks the hashes of each block and ensures that any illegal hashes are recomputed. After this routine is run, the chain will be valid. The routine does not modify any difficulty values. It computes new proof of work based on the difficulty specified in the Block.
+     * Getter for mempool
+     * @return the mempool feeding this chain, or null
      */
-    public void repairChain(){
+    public Mempool getMempool(){
+        return this.mempool;
+    }
 
-        boolean valid = true;
-        int invalid_index = 0;
+    /**
+     * Setter for mempool
+     * @param mempool the mempool feeding this chain
+     */
+    public void setMempool(Mempool mempool){
+        this.mempool = mempool;
+    }
 
-        //Check if any block is invalid
-        for(int i = 0; i < getChainSize(); i++){
+    /**
+     * Getter for peers
+     * @return the node replicating this chain, or null
+     */
+    public PeerNode getPeers(){
+        return this.peers;
+    }
 
-            String hash = this.blocks.get(i).calculateHash();
+    /**
+     * Setter for peers
+     * @param peers the node replicating this chain
+     */
+    public void setPeers(PeerNode peers){
+        this.peers = peers;
+    }
 
-            //Counting leading zeros
-            int leading_zeros = 0;
-            for(int k = 0; k < hash.length(); k++){
-                if (hash.charAt(k) == '0'){
-                    leading_zeros += 1;
-                }else break;
-            }
-            //If leading zeros requirements not met
-            if(this.blocks.get(i).getDifficulty() > leading_zeros){
-                //Signify that the chain is invalid, and record the first illegal block
-                valid = false;
-                invalid_index = i;
-                break;
-            }
+    /**
+     * This method checks for any illegal block and return true if the blockchain is valid, else false
+     * Only blocks after the verified prefix are hashed, so an unchanged chain is answered without hashing anything.
+     * @return boolean value signifying whether the chain is valid
+     */
+    public boolean isChainValid(){
 
-            //Check if the blocks are properly chained
-            if(i != getChainSize()-1){
-                if(!hash.equals(this.blocks.get(i+1).getPreviousHash())){
-                    valid = false;
-                    invalid_index = i;
-                    break;
-                }
-            }else{
-                if(!hash.equals(this.chainHash)){
-                    valid = false;
-                    invalid_index = i;
-                    break;
-                }
-            }
+        long t0 = System.nanoTime();
+        int invalid = findFirstInvalid(this.verifiedPrefix);
+        Metrics.get().recordChainVerification(System.nanoTime() - t0);
+
+        //Everything is valid now
+        if(invalid < 0){
+            this.verifiedPrefix = getChainSize();
+            return true;
         }
 
+        //Blocks before the illegal one are still valid
+        this.verifiedPrefix = invalid;
+        int result = checkBlock(invalid);
+        if(result == IMPROPER_HASH && this.blocks.get(invalid).getTarget() != null){
+            System.out.println("..Improper hash on node "+invalid+" Is not below target "+this.blocks.get(invalid).getTarget());
+        }else if(result == IMPROPER_HASH){
+            String zeros = "0";
+            zeros = zeros.repeat(this.blocks.get(invalid).getDifficulty());
+            System.out.println("..Improper hash on node "+invalid+" Does not begin with "+zeros);
+        }else if(result == BAD_TRANSACTIONS){
+            System.out.println("..Transactions on node "+invalid+" do not match its Merkle root");
+        }
+        return false;
+    }
+
+    /**
+     *This routine repairs the chain. It checks the hashes of each block and ensures that any illegal hashes are recomputed. After this routine is run, the chain will be valid. The routine does not modify any difficulty values. It computes new proof of work based on the difficulty specified in the Block.
+     */
+    public void repairChain(){
+
+        //Check if any block after the verified prefix is invalid, and record the first illegal block
+        int invalid_index = findFirstInvalid(this.verifiedPrefix);
+        boolean valid = invalid_index < 0;
+
+        //If there is no illegal block, the whole chain has just been verified
+        if(valid) this.verifiedPrefix = getChainSize();
+
         //If there is an illegal block
         if(!valid){
             //For every block starting from the invalid block, regenerate hashes and chain them
             for(int i = invalid_index; i < getChainSize(); i++){
-                String correctHash = this.blocks.get(i).proofOfWork();
-                if(i != getChainSize()-1) this.blocks.get(i+1).setPreviousHash(correctHash);
-                else this.chainHash = correctHash;
+                //Commit to the current transactions before mining
+                if(!this.blocks.get(i).hasValidMerkleRoot()) this.blocks.get(i).updateMerkleRoot();
+                String correctHash = mine(this.blocks.get(i));
+                link(i, correctHash, true);
             }
         }
 
     }
 
+    /**
+     * This method links a block that was mined again to the chain: the next block, or the chain hash for the latest block,
+     * points at its new hash. If every block before it was valid, everything before the next block is valid afterwards,
+     * which is where a repair picks up again.
+     * @param i position of the block
+     * @param correctHash the new hash of the block
+     * @param prefixValid whether the blocks before i are known to be valid
+     */
+    private void link(int i, String correctHash, boolean prefixValid){
+        String oldHash = hashOf(i);
+        this.index.relink(i, oldHash, correctHash);
+        if(i != getChainSize()-1) this.blocks.get(i+1).setPreviousHash(correctHash);
+        else setChainHash(correctHash);
+        if(prefixValid) this.verifiedPrefix = Math.max(this.verifiedPrefix, i+1);
+    }
+
+    /**
+     * This method finds the next block a repair has to mine again, starting at the verified prefix.
+     * The caller holds the write lock.
+     * @return position of the first illegal block, or -1 if the chain is valid
+     */
+    int nextToRepair(){
+        int invalid = findFirstInvalid(this.verifiedPrefix);
+        this.verifiedPrefix = invalid < 0 ? getChainSize() : invalid;
+        //Commit to the current transactions before mining
+        if(invalid >= 0 && !this.blocks.get(invalid).hasValidMerkleRoot()) this.blocks.get(invalid).updateMerkleRoot();
+        return invalid;
+    }
+
+    /**
+     * This method stores the result of mining a copy of a block outside the lock.
+     * The caller holds the write lock. Nothing is stored if the block was changed while the copy was mined,
+     * and the verified prefix only moves past the block if no block before it was changed in the meantime.
+     * @param i position of the block
+     * @param mined the mined copy
+     * @param hash the hash of the mined copy
+     * @return whether the block was repaired
+     */
+    boolean commitRepair(int i, Block mined, String hash){
+        if(i >= getChainSize() || !this.blocks.get(i).sameHeader(mined)) return false;
+        //nextToRepair left the verified prefix at i, a block before i changed while mining if it went lower
+        boolean prefixValid = this.verifiedPrefix == i;
+        this.blocks.get(i).setNonce(mined.getNonce());
+        link(i, hash, prefixValid);
+        return true;
+    }
+
+    /**
+     * This method starts repairing the chain on a background thread, unless a repair is already running.
+     * Blocks are mined without holding the lock, so the chain keeps serving requests during the repair.
+     * @return the running repair
+     */
+    public synchronized RepairJob startRepair(){
+        if(this.repairJob == null || !this.repairJob.isRunning()){
+            this.repairJob = new RepairJob(this);
+            Thread thread = new Thread(this.repairJob, "repair");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this.repairJob;
+    }
+
+    /**
+     * Getter for repairJob
+     * @return the latest repair started by startRepair, or null
+     */
+    public synchronized RepairJob getRepairJob(){
+        return this.repairJob;
+    }
+
     /**
      * This routine acts as a test driver for your Blockchain.
      * It takes about 100~400 milliseconds to generate and add a new block with difficulty 4 to the blockchain.
@@ -0,0 +1,287 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to encode blocks in a compact binary form.
+ * It is used to store blocks on disk and to send them between processes, instead of JSON.
+ * Integers are written as varints, text as length-prefixed UTF-8 bytes and hashes as 32 raw bytes.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BlockCodec {
+
+    //Bits of the flags byte that starts every encoded block
+    private static final int PREVIOUS_HASH_EMPTY = 0;
+    private static final int PREVIOUS_HASH_RAW = 1;
+    private static final int PREVIOUS_HASH_TEXT = 2;
+    private static final int PREVIOUS_HASH_MASK = 3;
+    private static final int BIG_NONCE = 4;
+    private static final int TRANSACTIONS = 8;
+    private static final int TARGET = 16;
+
+    //Longest record read from a stream, a longer length is refused before anything is allocated for it
+    public static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    /**
+     * This method encodes a block.
+     * Layout: flags, index, timestamp millis, timestamp nanos, data, difficulty, compact target if any, previousHash, nonce,
+     * then for a block holding a list of transactions their count and every transaction.
+     * @param block the block to encode
+     * @return the encoded bytes
+     */
+    public static byte[] encode(Block block){
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + block.getData().length());
+        String previousHash = block.getPreviousHash() == null ? "" : block.getPreviousHash();
+        BigInteger nonce = block.getNonce();
+
+        //Hex hashes are stored as raw bytes, anything else (such as a corrupted link) as text
+        int flags;
+        if(previousHash.isEmpty()) flags = PREVIOUS_HASH_EMPTY;
+        else if(isHash(previousHash)) flags = PREVIOUS_HASH_RAW;
+        else flags = PREVIOUS_HASH_TEXT;
+        if(nonce.bitLength() >= 64) flags |= BIG_NONCE;
+        if(block.getTransactions() != null) flags |= TRANSACTIONS;
+        if(block.getTarget() != null) flags |= TARGET;
+        out.write(flags);
+
+        writeVarLong(out, block.getIndex());
+        writeVarLong(out, block.getTimestamp().getTime());
+        writeVarLong(out, block.getTimestamp().getNanos());
+        writeBytes(out, utf8(block.getData()));
+        writeVarLong(out, block.getDifficulty());
+        if((flags & TARGET) != 0) writeVarLong(out, block.getTarget().getCompact() & 0xFFFFFFFFL);
+
+        if((flags & PREVIOUS_HASH_MASK) == PREVIOUS_HASH_RAW) out.write(fromHex(previousHash), 0, BlockHasher.HASH_LENGTH);
+        else if((flags & PREVIOUS_HASH_MASK) == PREVIOUS_HASH_TEXT) writeBytes(out, utf8(previousHash));
+
+        if((flags & BIG_NONCE) != 0) writeBytes(out, nonce.toByteArray());
+        else writeVarLong(out, nonce.longValue());
+
+        if((flags & TRANSACTIONS) != 0){
+            writeVarLong(out, block.getTransactions().size());
+            for(String transaction : block.getTransactions()){
+                writeBytes(out, utf8(transaction));
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * This method decodes a block from the current position of the buffer.
+     * @param in the buffer holding the encoded block
+     * @return the decoded block
+     * @throws IOException if the bytes are not a valid block
+     */
+    public static Block decode(ByteBuffer in) throws IOException {
+
+        try {
+            int flags = in.get() & 0xFF;
+            int index = (int) readVarLong(in);
+            Timestamp timestamp = new Timestamp(readVarLong(in));
+            timestamp.setNanos((int) readVarLong(in));
+            String data = new String(readBytes(in), "UTF-8");
+            int difficulty = (int) readVarLong(in);
+            Block block = new Block(index, timestamp, data, difficulty);
+            if((flags & TARGET) != 0) block.restoreTarget(Target.fromCompact((int) readVarLong(in)));
+
+            int kind = flags & PREVIOUS_HASH_MASK;
+            if(kind == PREVIOUS_HASH_RAW){
+                byte[] hash = new byte[BlockHasher.HASH_LENGTH];
+                in.get(hash);
+                block.setPreviousHash(BlockHasher.toHex(hash));
+            }else if(kind == PREVIOUS_HASH_TEXT){
+                block.setPreviousHash(new String(readBytes(in), "UTF-8"));
+            }else{
+                block.setPreviousHash("");
+            }
+
+            if((flags & BIG_NONCE) != 0) block.setNonce(new BigInteger(readBytes(in)));
+            else block.setNonce(BigInteger.valueOf(readVarLong(in)));
+
+            if((flags & TRANSACTIONS) != 0){
+                int count = (int) readVarLong(in);
+                if(count < 0 || count > in.remaining()) throw new IOException("Malformed transaction count " + count);
+                List<String> transactions = new ArrayList<>(count);
+                for(int i = 0; i < count; i++){
+                    transactions.add(new String(readBytes(in), "UTF-8"));
+                }
+                block.restoreTransactions(transactions);
+            }
+            return block;
+
+        } catch (BufferUnderflowException | NegativeArraySizeException ex) {
+            throw new IOException("Truncated block record");
+        }
+    }
+
+    /**
+     * This method writes a block to a stream, prefixed with its length.
+     * @param block the block to write
+     * @param out the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(Block block, OutputStream out) throws IOException {
+        byte[] bytes = encode(block);
+        ByteArrayOutputStream length = new ByteArrayOutputStream(5);
+        writeVarLong(length, bytes.length);
+        length.writeTo(out);
+        out.write(bytes);
+    }
+
+    /**
+     * This method reads a length-prefixed block from a stream.
+     * @param in the stream to read from
+     * @return the block, or null at the end of the stream
+     * @throws IOException if the stream cannot be read or holds a malformed block
+     */
+    public static Block read(InputStream in) throws IOException {
+        byte[] record = readRecord(in);
+        return record == null ? null : decode(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * This method reads the bytes of a length-prefixed block from a stream without decoding them,
+     * so they can be decoded on another thread.
+     * @param in the stream to read from
+     * @return the encoded block, or null at the end of the stream
+     * @throws IOException if the stream cannot be read or the length is malformed or above MAX_RECORD
+     */
+    public static byte[] readRecord(InputStream in) throws IOException {
+
+        //Read the varint length, a clean end of stream before it means there are no more blocks
+        long length = 0;
+        int shift = 0;
+        while(true){
+            int b = in.read();
+            if(b < 0){
+                if(shift == 0) return null;
+                throw new EOFException("Truncated block length");
+            }
+            length |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) break;
+            shift += 7;
+            if(shift > 35) throw new IOException("Malformed block length");
+        }
+
+        //The length is written as a zigzag varint like every other number
+        length = (length >>> 1) ^ -(length & 1);
+        if(length < 0 || length > MAX_RECORD) throw new IOException("Malformed block length " + length);
+
+        byte[] bytes = new byte[(int) length];
+        int read = 0;
+        while(read < bytes.length){
+            int n = in.read(bytes, read, bytes.length - read);
+            if(n < 0) throw new EOFException("Truncated block record");
+            read += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * This method writes a signed number as a zigzag varint: 7 bits per byte, high bit set while more bytes follow.
+     * @param out the stream to write to
+     * @param value the number
+     */
+    static void writeVarLong(ByteArrayOutputStream out, long value){
+        long zigzag = (value << 1) ^ (value >> 63);
+        while((zigzag & ~0x7FL) != 0){
+            out.write((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+
+    /**
+     * This method reads a zigzag varint.
+     * @param in the buffer to read from
+     * @return the number
+     * @throws IOException if the varint is longer than 10 bytes
+     */
+    static long readVarLong(ByteBuffer in) throws IOException {
+        long zigzag = 0;
+        for(int shift = 0; shift < 70; shift += 7){
+            int b = in.get() & 0xFF;
+            zigzag |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * This method writes length-prefixed bytes.
+     * @param out the stream to write to
+     * @param bytes the bytes
+     */
+    static void writeBytes(ByteArrayOutputStream out, byte[] bytes){
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * This method reads length-prefixed bytes.
+     * @param in the buffer to read from
+     * @return the bytes
+     * @throws IOException if the length is malformed
+     */
+    static byte[] readBytes(ByteBuffer in) throws IOException {
+        long length = readVarLong(in);
+        if(length < 0 || length > in.remaining()) throw new IOException("Malformed length " + length);
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * This method checks whether a String is a lowercase hex SHA-256 hash.
+     * @param text the String
+     * @return whether it can be stored as 32 raw bytes
+     */
+    static boolean isHash(String text){
+        if(text.length() != BlockHasher.HASH_LENGTH * 2) return false;
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            if(!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * This method converts a hex String to bytes.
+     * @param hexString a String holding Hexadecimal characters
+     * @return the bytes
+     */
+    static byte[] fromHex(String hexString){
+        byte[] bytes = new byte[hexString.length() / 2];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = (byte) ((Character.digit(hexString.charAt(2 * i), 16) << 4) | Character.digit(hexString.charAt(2 * i + 1), 16));
+        }
+        return bytes;
+    }
+
+    /**
+     * This method encodes a String as UTF-8.
+     * @param text a String
+     * @return UTF-8 bytes
+     */
+    private static byte[] utf8(String text){
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            System.out.println("Error");
+            System.exit(1);
+        }
+        return new byte[0];
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to hash block headers quickly.
+ * It keeps the serialized header of a block (index, timestamp, data, previousHash) in a byte buffer
+ * and only rewrites the nonce and difficulty bytes for every attempt, so mining does not build Strings.
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class BlockHasher {
+
+    //Length of a SHA-256 digest in bytes
+    public static final int HASH_LENGTH = 32;
+
+    //Every thread reuses its own digest instead of looking one up for every hash
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            System.out.println("Error");
+            System.exit(1);
+            return null;
+        }
+    });
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * This method returns the SHA-256 digest of the calling thread, reset and ready for a new hash.
+     * Every class that hashes shares it instead of keeping a digest of its own.
+     * @return the digest
+     */
+    static MessageDigest sha256(){
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
+    private byte[] buffer;
+    private final int prefixLength;
+    private final int prefixChars;
+    private final byte[] difficultyBytes;
+    private final byte[] hash = new byte[HASH_LENGTH];
+    private final byte[] digits = new byte[20];
+
+    /**
+     * This constructor serializes the part of the header that does not change while mining.
+     * @param index the position of the block
+     * @param timestamp the time the block was created
+     * @param data the transaction of the block
+     * @param previousHash the hash of the previous block
+     * @param difficulty the difficulty of the block
+     */
+    public BlockHasher(int index, java.sql.Timestamp timestamp, String data, String previousHash, int difficulty){
+        this(index, timestamp, data, previousHash, Integer.toString(difficulty));
+    }
+
+    /**
+     * This constructor serializes the header of a block whose difficulty is written as the given text.
+     * @param index the position of the block
+     * @param timestamp the time the block was created
+     * @param data the transaction of the block
+     * @param previousHash the hash of the previous block
+     * @param difficulty the difficulty of the block as it goes into the hash, it has to be ASCII
+     */
+    public BlockHasher(int index, java.sql.Timestamp timestamp, String data, String previousHash, String difficulty){
+        String prefix = Integer.toString(index) + timestamp.toString() + data + previousHash;
+        byte[] prefixBytes = utf8(prefix);
+        this.prefixLength = prefixBytes.length;
+        this.prefixChars = prefix.length();
+        this.difficultyBytes = utf8(difficulty);
+        //Leave room for the longest long nonce and the difficulty
+        this.buffer = new byte[this.prefixLength + this.digits.length + this.difficultyBytes.length];
+        System.arraycopy(prefixBytes, 0, this.buffer, 0, this.prefixLength);
+    }
+
+    /**
+     * This method hashes the header with the given nonce.
+     * The returned array is owned by this hasher and is overwritten by the next call.
+     * @param nonce the nonce to hash with
+     * @return the raw SHA-256 digest
+     */
+    public byte[] hash(long nonce){
+
+        //Write the decimal digits of the nonce backwards into the scratch array
+        int count = 0;
+        boolean negative = nonce < 0;
+        long value = nonce;
+        do {
+            digits[count++] = (byte) ('0' + Math.abs(value % 10));
+            value /= 10;
+        } while (value != 0);
+        if(negative) digits[count++] = '-';
+
+        //Copy them in order after the fixed prefix
+        int position = this.prefixLength;
+        for(int i = count - 1; i >= 0; i--){
+            this.buffer[position++] = digits[i];
+        }
+        return finish(position);
+    }
+
+    /**
+     * This method hashes the header with a nonce that may not fit in a long.
+     * @param nonce the nonce to hash with
+     * @return the raw SHA-256 digest, overwritten by the next call
+     */
+    public byte[] hash(BigInteger nonce){
+
+        if(nonce.bitLength() < 64) return hash(nonce.longValue());
+
+        byte[] nonceBytes = utf8(nonce.toString());
+        int needed = this.prefixLength + nonceBytes.length + this.difficultyBytes.length;
+        //Grow the buffer once for nonces longer than a long
+        if(needed > this.buffer.length){
+            byte[] grown = new byte[needed];
+            System.arraycopy(this.buffer, 0, grown, 0, this.prefixLength);
+            this.buffer = grown;
+        }
+        System.arraycopy(nonceBytes, 0, this.buffer, this.prefixLength, nonceBytes.length);
+        return finish(this.prefixLength + nonceBytes.length);
+    }
+
+    /**
+     * This method appends the difficulty and runs the digest over the buffer.
+     * Like the original String based hash, only as many bytes as the header has characters are hashed,
+     * so hashes of blocks holding non-ASCII data stay the same as before.
+     * @param position end of the nonce bytes in the buffer
+     * @return the raw SHA-256 digest
+     */
+    private byte[] finish(int position){
+
+        System.arraycopy(this.difficultyBytes, 0, this.buffer, position, this.difficultyBytes.length);
+        int chars = this.prefixChars + (position - this.prefixLength) + this.difficultyBytes.length;
+
+        MessageDigest digest = sha256();
+        digest.update(this.buffer, 0, chars);
+        try {
+            digest.digest(this.hash, 0, HASH_LENGTH);
+        } catch (DigestException ex) {
+            System.out.println("Error");
+            System.exit(1);
+        }
+        return this.hash;
+    }
+
+    /**
+     * This method counts the leading zero nibbles of a raw digest.
+     * @param hash the raw digest
+     * @return number of leading hexadecimal zeros
+     */
+    public static int leadingZeroNibbles(byte[] hash){
+        int zeros = 0;
+        for(int i = 0; i < hash.length; i++){
+            if(hash[i] == 0){
+                zeros += 2;
+            }else{
+                if((hash[i] & 0xF0) == 0) zeros += 1;
+                break;
+            }
+        }
+        return zeros;
+    }
+
+    /**
+     * This method checks whether a raw digest has at least the given number of leading zero nibbles.
+     * @param hash the raw digest
+     * @param difficulty the number of leftmost nibbles that need to be 0
+     * @return whether the hash meets the difficulty
+     */
+    public static boolean meetsDifficulty(byte[] hash, int difficulty){
+        return leadingZeroNibbles(hash) >= difficulty;
+    }
+
+    /**
+     * This method compares a raw digest with a hex String without converting the digest.
+     * @param hash the raw digest
+     * @param hexString a String holding Hexadecimal characters
+     * @return whether both represent the same hash
+     */
+    public static boolean equalsHex(byte[] hash, String hexString){
+        if(hexString == null || hexString.length() != hash.length * 2) return false;
+        for(int i = 0; i < hash.length; i++){
+            if(hexString.charAt(2 * i) != HEX[(hash[i] >>> 4) & 0x0F]) return false;
+            if(hexString.charAt(2 * i + 1) != HEX[hash[i] & 0x0F]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * This method converts a raw digest to a hex String.
+     * @param hash the raw digest
+     * @return a String holding Hexadecimal characters
+     */
+    public static String toHex(byte[] hash){
+        char[] chars = new char[hash.length * 2];
+        for(int i = 0; i < hash.length; i++){
+            chars[2 * i] = HEX[(hash[i] >>> 4) & 0x0F];
+            chars[2 * i + 1] = HEX[hash[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * This method hashes a String on its own, such as a transaction, with the digest of the calling thread.
+     * @param text a String
+     * @return hex String of the SHA-256 digest of its UTF-8 bytes
+     */
+    public static String hashText(String text){
+        return toHex(sha256().digest(utf8(text)));
+    }
+
+    /**
+     * This method encodes a String as UTF-8.
+     * @param text a String
+     * @return UTF-8 bytes
+     */
+    private static byte[] utf8(String text){
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            System.out.println("Error");
+            System.exit(1);
+        }
+        return new byte[0];
+    }
+}
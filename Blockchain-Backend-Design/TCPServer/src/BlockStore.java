@@ -0,0 +1,313 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to persist a blockchain on disk.
+ * Blocks are encoded with BlockCodec and appended to a log split into segment files, and an index file holds the location of the latest
+ * version of every block together with the chain hash. Reads go through memory-mapped files, so a restarted
+ * server recovers its chain by walking the index instead of mining it again.
+ * Every write of the chain hash commits the blocks before it, so by default the files are forced to disk right then;
+ * with a sync interval they are forced in the background instead, and a crash can lose the blocks of the last interval.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class BlockStore {
+
+    //Index header: magic, version, length of the chain hash, then room for a 64 character chain hash
+    private static final int MAGIC = 0x424c4b53;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 76;
+    //Every index entry holds the segment number, the record length and the record offset
+    private static final int ENTRY_SIZE = 16;
+    //A new segment is started once the current one would grow past this size
+    private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+
+    private final Path dir;
+    private final FileChannel index;
+    private int count;
+    private int segment;
+    private FileChannel segmentChannel;
+    private final Map<Integer, MappedByteBuffer> maps = new HashMap<>();
+    //Whether anything was written since the files were last forced to disk
+    private boolean dirty = false;
+    //Forces the files every sync interval, null when every commit is forced
+    private ScheduledExecutorService syncer;
+
+    /**
+     * This constructor opens the store in the given directory, creating it if it does not exist yet.
+     * @param dir directory holding the segments and the index
+     * @throws IOException if the files cannot be opened
+     */
+    public BlockStore(Path dir) throws IOException {
+
+        this.dir = dir;
+        Files.createDirectories(dir);
+
+        //Open or create the index
+        this.index = FileChannel.open(dir.resolve("blocks.idx"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(this.index.size() < HEADER_SIZE){
+            writeHeader("");
+        }else{
+            ByteBuffer header = ByteBuffer.allocate(8);
+            this.index.read(header, 0);
+            header.flip();
+            if(header.getInt() != MAGIC || header.getInt() != VERSION){
+                throw new IOException("Not a version " + VERSION + " block index: " + dir.resolve("blocks.idx"));
+            }
+        }
+        this.count = (int) ((this.index.size() - HEADER_SIZE) / ENTRY_SIZE);
+
+        //Continue appending to the last segment
+        this.segment = 0;
+        while(Files.exists(segmentPath(this.segment + 1))) this.segment++;
+        this.segmentChannel = openSegment(this.segment);
+    }
+
+    /**
+     * Getter for count
+     * @return number of blocks in the store
+     */
+    public synchronized int size(){
+        return this.count;
+    }
+
+    /**
+     * This method reads the chain hash recorded with the latest block.
+     * @return the chain hash, or the empty string for an empty chain
+     * @throws IOException if the index cannot be read
+     */
+    public synchronized String readChainHash() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        this.index.read(header, 0);
+        header.flip();
+        header.position(8);
+        int length = header.getInt();
+        byte[] hash = new byte[length];
+        header.get(hash);
+        return new String(hash, "US-ASCII");
+    }
+
+    /**
+     * This method records the chain hash.
+     * @param chainHash hash of the latest block
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void writeChainHash(String chainHash) throws IOException {
+        writeHeader(chainHash);
+        this.dirty = true;
+        if(this.syncer == null) sync();
+    }
+
+    /**
+     * This method forces everything written so far to disk.
+     * @throws IOException if the files cannot be forced
+     */
+    public synchronized void sync() throws IOException {
+        if(!this.dirty) return;
+        //Appends and truncation change the file sizes, so the metadata is forced as well
+        this.segmentChannel.force(true);
+        this.index.force(true);
+        this.dirty = false;
+    }
+
+    /**
+     * This method chooses how often the files are forced to disk.
+     * @param millis 0 to force them on every commit, otherwise the time between two forces in milliseconds
+     */
+    public synchronized void setSyncInterval(long millis){
+        if(this.syncer != null){
+            this.syncer.shutdownNow();
+            this.syncer = null;
+        }
+        if(millis <= 0) return;
+        this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "block-store-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.syncer.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (IOException error) {
+                System.out.println("IO Exception:" + error.getMessage());
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method appends a new block to the end of the store.
+     * @param block the block to append
+     * @throws IOException if the block cannot be written
+     */
+    public synchronized void append(Block block) throws IOException {
+        write(this.count, block);
+    }
+
+    /**
+     * This method stores the latest version of the block at the given position.
+     * The record is appended to the log and the index entry is pointed at it, older versions are never overwritten.
+     * @param position position of the block, at most the current number of blocks
+     * @param block the block to store
+     * @throws IOException if the block cannot be written
+     */
+    public synchronized void write(int position, Block block) throws IOException {
+
+        if(position > this.count) throw new IOException("Cannot write block " + position + " after " + this.count + " blocks");
+
+        byte[] record = BlockCodec.encode(block);
+
+        //Roll over to a new segment when the current one is full
+        if(this.segmentChannel.size() > 0 && this.segmentChannel.size() + record.length > SEGMENT_SIZE){
+            this.segmentChannel.force(true);
+            this.segmentChannel.close();
+            this.segment++;
+            this.segmentChannel = openSegment(this.segment);
+        }
+
+        //Append the record to the log
+        long offset = this.segmentChannel.size();
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while(buffer.hasRemaining()) this.segmentChannel.write(buffer, offset + buffer.position());
+
+        //Point the index entry at the new record
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.putInt(this.segment);
+        entry.putInt(record.length);
+        entry.putLong(offset);
+        entry.flip();
+        long entryPosition = HEADER_SIZE + (long) position * ENTRY_SIZE;
+        while(entry.hasRemaining()) this.index.write(entry, entryPosition + entry.position());
+
+        if(position == this.count) this.count++;
+        this.dirty = true;
+    }
+
+    /**
+     * This method forgets every block from the given position on, their records stay in the log until it is compacted.
+     * @param count number of blocks to keep
+     * @throws IOException if the index cannot be shortened
+     */
+    public synchronized void truncate(int count) throws IOException {
+        //Shortening to the current size still cuts off an index entry left half written by a failed write
+        if(count > this.count) return;
+        this.count = Math.max(0, count);
+        this.index.truncate(HEADER_SIZE + (long) this.count * ENTRY_SIZE);
+        this.dirty = true;
+    }
+
+    /**
+     * This method reads the block stored at the given position through a memory-mapped segment.
+     * @param position position of the block
+     * @return the stored block
+     * @throws IOException if the block cannot be read
+     */
+    public synchronized Block read(int position) throws IOException {
+
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        this.index.read(entry, HEADER_SIZE + (long) position * ENTRY_SIZE);
+        entry.flip();
+        return readRecord(entry.getInt(), entry.getInt(), entry.getLong());
+    }
+
+    /**
+     * This method reads every block in order, walking the memory-mapped index once.
+     * @return all stored blocks
+     * @throws IOException if a block cannot be read
+     */
+    public synchronized List<Block> readAll() throws IOException {
+
+        List<Block> blocks = new ArrayList<>(this.count);
+        if(this.count == 0) return blocks;
+
+        MappedByteBuffer entries = this.index.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) this.count * ENTRY_SIZE);
+        for(int i = 0; i < this.count; i++){
+            blocks.add(readRecord(entries.getInt(), entries.getInt(), entries.getLong()));
+        }
+        return blocks;
+    }
+
+    /**
+     * This method flushes and closes all files of the store.
+     * @throws IOException if the files cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        if(!this.index.isOpen()) return;
+        setSyncInterval(0);
+        this.segmentChannel.force(true);
+        this.segmentChannel.close();
+        this.index.force(true);
+        this.index.close();
+        this.maps.clear();
+    }
+
+    /**
+     * This method decodes the record at the given location, remapping the segment if it grew since it was mapped.
+     * @param segment segment number
+     * @param length record length
+     * @param offset record offset in the segment
+     * @return the decoded block
+     * @throws IOException if the segment cannot be mapped
+     */
+    private Block readRecord(int segment, int length, long offset) throws IOException {
+
+        MappedByteBuffer map = this.maps.get(segment);
+        if(map == null || map.capacity() < offset + length){
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            this.maps.put(segment, map);
+        }
+        ByteBuffer record = map.duplicate();
+        record.position((int) offset);
+        record.limit((int) (offset + length));
+        return BlockCodec.decode(record.slice());
+    }
+
+    /**
+     * This method writes the index header holding the chain hash.
+     * @param chainHash hash of the latest block
+     * @throws IOException if the index cannot be written
+     */
+    private void writeHeader(String chainHash) throws IOException {
+        byte[] hash = chainHash.getBytes("US-ASCII");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(hash.length);
+        header.put(hash);
+        header.position(0);
+        while(header.hasRemaining()) this.index.write(header, header.position());
+    }
+
+    /**
+     * This method returns the path of a segment file.
+     * @param segment segment number
+     * @return path of the segment
+     */
+    private Path segmentPath(int segment){
+        return this.dir.resolve(String.format("segment-%05d.log", segment));
+    }
+
+    /**
+     * This method opens a segment for appending.
+     * @param segment segment number
+     * @return channel of the segment
+     * @throws IOException if the segment cannot be opened
+     */
+    private FileChannel openSegment(int segment) throws IOException {
+        return FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
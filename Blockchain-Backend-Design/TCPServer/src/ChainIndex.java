@@ -0,0 +1,105 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to look up blocks without walking the chain.
+ * It maps the hash every block is linked by to its position, and the hash of every transaction to the blocks holding it.
+ * The chain keeps it up to date as blocks are added, changed and repaired, under the write lock of the chain.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ChainIndex {
+
+    //Position of the block every link hash (a previousHash or the chain hash) points at
+    private final Map<String, Integer> blocks = new HashMap<>();
+    //Positions of the blocks holding a transaction, by the hash of the transaction, in ascending order
+    private final Map<String, List<Integer>> transactions = new HashMap<>();
+
+    /**
+     * This method indexes a block added to the end of the chain.
+     * @param position position of the block
+     * @param hash the hash the block is linked by
+     * @param contents the transactions of the block
+     */
+    void add(int position, String hash, List<String> contents){
+        this.blocks.put(hash, position);
+        addTransactions(position, contents);
+    }
+
+    /**
+     * This method moves a block to the new hash it is linked by, after it was mined again.
+     * @param position position of the block
+     * @param oldHash the hash the block was linked by
+     * @param newHash the hash the block is linked by now
+     */
+    void relink(int position, String oldHash, String newHash){
+        Integer old = this.blocks.get(oldHash);
+        if(old != null && old == position) this.blocks.remove(oldHash);
+        this.blocks.put(newHash, position);
+    }
+
+    /**
+     * This method reindexes the transactions of a block after they changed.
+     * @param position position of the block
+     * @param oldContents the transactions the block held
+     * @param newContents the transactions the block holds now
+     */
+    void replace(int position, List<String> oldContents, List<String> newContents){
+        for(String transaction : oldContents){
+            String hash = BlockHasher.hashText(transaction);
+            List<Integer> positions = this.transactions.get(hash);
+            if(positions == null) continue;
+            positions.remove(Integer.valueOf(position));
+            if(positions.isEmpty()) this.transactions.remove(hash);
+        }
+        addTransactions(position, newContents);
+    }
+
+    /**
+     * This method adds a block to the positions of each of its transactions.
+     * @param position position of the block
+     * @param contents the transactions of the block
+     */
+    private void addTransactions(int position, List<String> contents){
+        for(String transaction : contents){
+            List<Integer> positions = this.transactions.computeIfAbsent(BlockHasher.hashText(transaction), hash -> new ArrayList<>(1));
+            //Keep the positions sorted, blocks are usually added at the end
+            int at = positions.size();
+            while(at > 0 && positions.get(at - 1) > position) at--;
+            //A block holding the same transaction twice is listed once
+            if(at > 0 && positions.get(at - 1) == position) continue;
+            positions.add(at, position);
+        }
+    }
+
+    /**
+     * This method removes every entry.
+     */
+    void clear(){
+        this.blocks.clear();
+        this.transactions.clear();
+    }
+
+    /**
+     * This method finds the block a hash links to.
+     * @param hash hex String of the hash
+     * @return position of the block, or -1 if no block is linked by that hash
+     */
+    public int findBlock(String hash){
+        Integer position = this.blocks.get(hash);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * This method finds the blocks holding a transaction.
+     * @param hash hex String of the SHA-256 hash of the transaction
+     * @return positions of the blocks, in ascending order
+     */
+    public List<Integer> findTransaction(String hash){
+        List<Integer> positions = this.transactions.get(hash);
+        return positions == null ? Collections.<Integer>emptyList() : Collections.unmodifiableList(positions);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to send a range of the blockchain to a client a page at a time.
+ * Only one page of blocks is held in memory, and the read lock of the chain is only held while a page is written,
+ * so a long chain can be streamed to a slow client without holding up writers or growing the heap.
+ */
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class ChainStream {
+
+    //Request type that asks for a stream instead of a single response line
+    public static final int TYPE = 13;
+    //Blocks written under one read lock
+    public static final int PAGE_SIZE = 256;
+
+    private final BlockChain blockchain;
+    //The correlation number of a pipelined request, copied into every line, or null
+    private final Object seq;
+    private String header;
+    private int next;
+    private int end;
+    private boolean finished = false;
+    //When the request arrived, the stream counts as one request in the metrics once its last line is out
+    private final long started = System.nanoTime();
+    private boolean recorded = false;
+
+    /**
+     * This method checks whether a request asks for a stream.
+     * @param map the request
+     * @return whether the request is a stream request
+     */
+    public static boolean isStream(JSONObject map){
+        Object type = map.get("type");
+        return type instanceof Long && (Long) type == TYPE;
+    }
+
+    /**
+     * This constructor checks a stream request and works out the range of blocks to send.
+     * param1 is the first index, param2 the number of blocks, or empty for every block up to the current tip.
+     * A request that fails is answered with a single error line.
+     * @param map the request
+     * @param blockchain the chain to send
+     */
+    public ChainStream(JSONObject map, BlockChain blockchain){
+
+        this.blockchain = blockchain;
+        this.seq = map.get("seq");
+
+        JSONObject obj = new JSONObject();
+        try {
+            if(!Server.check(map)){
+                obj.put("error", "Invalid id and signature.");
+            }else{
+                int from = ((Long) map.get("param1")).intValue();
+                String param2 = (String) map.get("param2");
+                long limit = param2 == null || param2.isEmpty() ? Integer.MAX_VALUE : Long.parseLong(param2);
+
+                //The range is fixed when the stream starts, blocks added later are not sent
+                blockchain.lock.readLock().lock();
+                try {
+                    this.next = Math.max(0, from);
+                    this.end = (int) Math.max(this.next, Math.min(blockchain.getChainSize(), this.next + Math.max(0, limit)));
+                } finally {
+                    blockchain.lock.readLock().unlock();
+                }
+                obj.put("stream", true);
+                obj.put("from", this.next);
+                obj.put("count", this.end - this.next);
+            }
+        } catch (RuntimeException error) {
+            obj.put("error", "Malformed request.");
+        }
+
+        if(obj.containsKey("error")) this.finished = true;
+        if(this.seq != null) obj.put("seq", this.seq);
+        this.header = obj.toString() + "\n";
+    }
+
+    /**
+     * This method produces the next part of the stream.
+     * The first part is a header line with the number of blocks, then every block goes on its own line
+     * as {"block":{...}}, and a last line {"end":true} closes the stream.
+     * @return the next lines, or null once the stream is over
+     */
+    public String nextChunk(){
+
+        //Send the header first
+        if(this.header != null){
+            String header = this.header;
+            this.header = null;
+            return header;
+        }
+        if(this.finished){
+            if(!this.recorded){
+                this.recorded = true;
+                Metrics.get().recordRequest(TYPE, System.nanoTime() - this.started);
+            }
+            return null;
+        }
+
+        //Close the stream after the last page
+        if(this.next >= this.end){
+            this.finished = true;
+            JSONObject obj = new JSONObject();
+            obj.put("end", true);
+            if(this.seq != null) obj.put("seq", this.seq);
+            return obj.toString() + "\n";
+        }
+
+        //Write one page under the read lock
+        StringWriter out = new StringWriter();
+        int to = Math.min(this.end, this.next + PAGE_SIZE);
+        this.blockchain.lock.readLock().lock();
+        try {
+            //Blocks are never removed, but do not run past the chain either way
+            to = Math.min(to, this.blockchain.getChainSize());
+            for(int i = this.next; i < to; i++){
+                out.write("{\"block\":");
+                this.blockchain.blocks.get(i).writeJSON(out);
+                if(this.seq != null){
+                    out.write(",\"seq\":");
+                    out.write(JSONValue.toJSONString(this.seq));
+                }
+                out.write("}\n");
+            }
+        } catch (IOException error) {
+            //A StringWriter does not throw
+        } finally {
+            this.blockchain.lock.readLock().unlock();
+        }
+        this.next = to > this.next ? to : this.end;
+        return out.toString();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to pick the difficulty of new blocks from how fast blocks have been added lately.
+ * The work done on the last blocks over the time they took is compared with a target block interval,
+ * and the next block gets the difficulty that would take about that long to mine, in fractions of a hexadecimal digit.
+ * The difficulty a client asks for only moves the result by a bounded amount,
+ * so a single client cannot ask for a block that takes minutes to mine.
+ * Each interval between blocks counts for at most MAX_INTERVALS target intervals,
+ * so a server that sat idle between requests does not drop to the minimum difficulty.
+ */
+
+import java.util.List;
+
+public class DifficultyRetarget {
+
+    //Retargeted difficulties are rounded to this many steps per hexadecimal digit, a quarter of a bit each
+    private static final int STEPS = 16;
+    //Longest interval between two blocks that counts, in target intervals, longer ones were idle time rather than mining
+    private static final int MAX_INTERVALS = 4;
+
+    //Time between blocks the difficulty aims for, in milliseconds
+    private final long targetInterval;
+    //Number of recent blocks the average interval is taken over
+    private final int window;
+    //How far the difficulty a client asks for can move the retargeted difficulty, in either direction
+    private final int maxDeviation;
+    private final int minDifficulty;
+    private final int maxDifficulty;
+
+    /**
+     * This constructor creates a retargeting rule.
+     * @param targetInterval time between blocks the difficulty aims for, in milliseconds
+     * @param window number of recent blocks the average interval is taken over
+     * @param maxDeviation how far a requested difficulty can move the result
+     * @param minDifficulty lowest difficulty handed out
+     * @param maxDifficulty highest difficulty handed out
+     */
+    public DifficultyRetarget(long targetInterval, int window, int maxDeviation, int minDifficulty, int maxDifficulty){
+        this.targetInterval = Math.max(1, targetInterval);
+        this.window = Math.max(1, window);
+        this.maxDeviation = Math.max(0, maxDeviation);
+        this.minDifficulty = Math.max(0, minDifficulty);
+        this.maxDifficulty = Math.max(this.minDifficulty, maxDifficulty);
+    }
+
+    /**
+     * This method works out the difficulty of the next block from the end of the chain.
+     * The work of the recent blocks over the time they took gives the rate blocks are mined at, and the base difficulty
+     * is the one whose expected work takes the target interval at that rate. Since it only depends on the work done,
+     * clients asking for low difficulties cannot drag it down. The caller holds at least the read lock of the chain.
+     * @param blocks the blocks of the chain, at least the genesis block
+     * @param requested the difficulty the client asked for
+     * @return the difficulty of the next block in hexadecimal digits, rounded to a sixteenth of a digit
+     */
+    public double next(List<Block> blocks, double requested){
+
+        int last = blocks.size() - 1;
+        double base = blocks.get(last).getFineDifficulty();
+
+        //Only retarget once there are enough blocks to average over, the genesis block is not counted
+        if(last > this.window){
+            double work = 0;
+            long span = 0;
+            for(int i = last - this.window + 1; i <= last; i++){
+                work += blocks.get(i).getWork();
+                long interval = blocks.get(i).getTimestamp().getTime() - blocks.get(i - 1).getTimestamp().getTime();
+                span += Math.max(0, Math.min(interval, MAX_INTERVALS * this.targetInterval));
+            }
+            //Expected attempts per millisecond, a span under a millisecond counts as one
+            double rate = work / Math.max(1, span);
+            base = Math.round(Math.log(rate * this.targetInterval) / Math.log(16) * STEPS) / (double) STEPS;
+        }
+
+        //Let the client move it a little
+        double difficulty = Math.max(base - this.maxDeviation, Math.min(base + this.maxDeviation, requested));
+        return Math.max(this.minDifficulty, Math.min(this.maxDifficulty, difficulty));
+    }
+
+    /**
+     * Getter for targetInterval
+     * @return time between blocks the difficulty aims for, in milliseconds
+     */
+    public long getTargetInterval(){
+        return this.targetInterval;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to measure how fast this machine hashes.
+ * Mining threads report the hashes they compute, and a background ticker turns the counts into exponentially weighted
+ * rates per thread and in total, so the status request reads a number instead of hashing for a second.
+ * Before anything was mined, the rate comes from a short benchmark of the block hasher run once at startup.
+ */
+
+import org.json.simple.JSONObject;
+import java.lang.ref.WeakReference;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HashRate {
+
+    //Hashes a mining thread counts locally before it reports them
+    public static final int REPORT_EVERY = 4096;
+    //How often the rates are updated, in milliseconds
+    private static final long TICK = 1000;
+    //The rates follow roughly the last WINDOW milliseconds of mining
+    private static final long WINDOW = 10000;
+    //Hashes computed by the startup benchmark
+    private static final int BENCHMARK_HASHES = 1 << 16;
+
+    /**
+     * This class holds the count and the rate of one thread.
+     * It only refers weakly to its thread, so the ticker can drop it once the thread has ended.
+     */
+    private static class Meter {
+        final AtomicLong count = new AtomicLong();
+        volatile double rate = 0;
+        final WeakReference<Thread> thread = new WeakReference<>(Thread.currentThread());
+    }
+
+    private static final HashRate INSTANCE = new HashRate();
+    static {
+        INSTANCE.start();
+    }
+
+    //Meters of the threads that have mined, by thread name and id
+    private final Map<String, Meter> meters = new ConcurrentHashMap<>();
+    private final ThreadLocal<Meter> local = ThreadLocal.withInitial(() -> {
+        Meter meter = new Meter();
+        this.meters.put(Thread.currentThread().getName() + "-" + Thread.currentThread().getId(), meter);
+        return meter;
+    });
+    private volatile double total = 0;
+    //Hashes reported since startup
+    private final AtomicLong hashes = new AtomicLong();
+    private volatile long lastMined = 0;
+    private volatile double benchmark = 0;
+    private ScheduledExecutorService ticker;
+
+    /**
+     * This method returns the rate meter of this process, its ticker starts when the class is loaded.
+     * @return the hash rate meter
+     */
+    public static HashRate get(){
+        return INSTANCE;
+    }
+
+    /**
+     * This method starts the ticker thread and runs the benchmark on it, once.
+     */
+    private void start(){
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hash-rate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker.execute(this::benchmark);
+        this.ticker.scheduleAtFixedRate(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method records hashes computed by the calling thread.
+     * Mining loops call it every REPORT_EVERY hashes and once more when they stop.
+     * @param hashes number of hashes computed since the last report
+     */
+    public void record(long hashes){
+        if(hashes <= 0) return;
+        Meter meter = this.local.get();
+        meter.count.addAndGet(hashes);
+        this.hashes.addAndGet(hashes);
+        this.lastMined = System.currentTimeMillis();
+    }
+
+    /**
+     * This method folds the counts of the last tick into the rates, and drops the meters of threads that have ended.
+     */
+    private void tick(){
+        double alpha = 1 - Math.exp(-(double) TICK / WINDOW);
+        double sum = 0;
+        Iterator<Meter> meters = this.meters.values().iterator();
+        while(meters.hasNext()){
+            Meter meter = meters.next();
+            Thread thread = meter.thread.get();
+            if(thread == null || !thread.isAlive()){
+                //Hashes it reported since the last tick are left out of the rates, getTotalHashes still counts them
+                meters.remove();
+                continue;
+            }
+            double instant = meter.count.getAndSet(0) * 1000.0 / TICK;
+            //Start from the first full tick instead of ramping up from 0
+            if(meter.rate == 0) meter.rate = instant;
+            else meter.rate += alpha * (instant - meter.rate);
+            sum += meter.rate;
+        }
+        this.total = sum;
+    }
+
+    /**
+     * This method measures the hasher on a fixed header, the same work a mining attempt does.
+     */
+    private void benchmark(){
+        BlockHasher hasher = new BlockHasher(0, new Timestamp(0), "00000000", "", 1);
+        long t0 = System.nanoTime();
+        for(int i = 0; i < BENCHMARK_HASHES; i++){
+            hasher.hash(i);
+        }
+        long elapsed = Math.max(1, System.nanoTime() - t0);
+        this.benchmark = BENCHMARK_HASHES * 1e9 / elapsed;
+    }
+
+    /**
+     * This method returns the hash rate without computing any hash.
+     * While blocks are being mined it is the rate of the mining threads together, otherwise the benchmark result.
+     * A rate of 0 means the benchmark has not finished yet.
+     * @return hashes per second
+     */
+    public int getHashesPerSecond(){
+        boolean mining = System.currentTimeMillis() - this.lastMined < WINDOW && this.total >= 1;
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(mining ? this.total : this.benchmark));
+    }
+
+    /**
+     * Getter for hashes
+     * @return number of hashes the mining threads computed since startup
+     */
+    public long getTotalHashes(){
+        return this.hashes.get();
+    }
+
+    /**
+     * This method describes the rates for the status request.
+     * @return total rate, benchmark rate and rate of every mining thread
+     */
+    public JSONObject toJSON(){
+        JSONObject obj = new JSONObject();
+        obj.put("total", Math.round(this.total));
+        obj.put("benchmark", Math.round(this.benchmark));
+        JSONObject threads = new JSONObject();
+        for(Map.Entry<String, Meter> entry : this.meters.entrySet()){
+            //Leave out threads that are not mining
+            if(entry.getValue().rate >= 1) threads.put(entry.getKey(), Math.round(entry.getValue().rate));
+        }
+        obj.put("threads", threads);
+        return obj;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to collect transactions before they are mined.
+ * Transactions are accepted right away with a receipt number, and a background miner thread packs the pending ones
+ * into a single block once enough of them are waiting or the oldest one has waited long enough.
+ * When the chain switches to the branch of a peer, transactions of the dropped blocks come back here to be mined again.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Mempool {
+
+    //Most confirmations remembered, the oldest ones are forgotten first
+    private static final int MAX_CONFIRMATIONS = 100000;
+
+    /**
+     * This class holds a transaction waiting to be mined.
+     */
+    private static class Pending {
+
+        final long receipt;
+        final String transaction;
+        final int difficulty;
+        final long arrived;
+
+        Pending(long receipt, String transaction, int difficulty, long arrived){
+            this.receipt = receipt;
+            this.transaction = transaction;
+            this.difficulty = difficulty;
+            this.arrived = arrived;
+        }
+    }
+
+    /**
+     * This class holds a confirmed transaction and the block holding it.
+     */
+    private static class Confirmation {
+
+        final Pending transaction;
+        int index;
+
+        Confirmation(Pending transaction, int index){
+            this.transaction = transaction;
+            this.index = index;
+        }
+    }
+
+    private final BlockChain blockchain;
+    //Most transactions packed into one block
+    private final int blockSize;
+    //Longest time in milliseconds a transaction waits for more transactions to share its block
+    private final long maxDelay;
+    //Most transactions waiting at the same time, new ones are refused beyond that
+    private final int capacity;
+
+    //Everything below is guarded by this
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    //Transactions the miner took and has not confirmed yet
+    private List<Pending> mining = new ArrayList<>();
+    //Every confirmed receipt with the block holding it
+    private final Map<Long, Confirmation> confirmed;
+    //Receipts handed out so far, the next receipt is this number
+    private long receipts = 0;
+    private Thread miner;
+
+    /**
+     * This constructor creates a mempool feeding the given chain, the miner is started by start.
+     * @param blockchain the chain new blocks are added to
+     * @param blockSize most transactions packed into one block
+     * @param maxDelay longest time in milliseconds a transaction waits before its block is mined
+     * @param capacity most transactions waiting at the same time
+     */
+    public Mempool(BlockChain blockchain, int blockSize, long maxDelay, int capacity){
+        this.blockchain = blockchain;
+        this.blockSize = Math.max(1, blockSize);
+        this.maxDelay = Math.max(0, maxDelay);
+        this.capacity = Math.max(1, capacity);
+        this.confirmed = new LinkedHashMap<Long, Confirmation>(){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Confirmation> eldest){
+                return size() > MAX_CONFIRMATIONS;
+            }
+        };
+    }
+
+    /**
+     * This method starts the background miner on a daemon thread.
+     */
+    public synchronized void start(){
+        if(this.miner != null) return;
+        this.miner = new Thread(this::mineLoop, "mempool-miner");
+        this.miner.setDaemon(true);
+        this.miner.start();
+    }
+
+    /**
+     * This method stops the background miner, transactions still waiting are not mined.
+     */
+    public synchronized void stop(){
+        if(this.miner == null) return;
+        this.miner.interrupt();
+        this.miner = null;
+    }
+
+    /**
+     * This method accepts a transaction without waiting for it to be mined.
+     * @param transaction the transaction
+     * @param difficulty the least difficulty of the block holding it
+     * @return the receipt number of the transaction, or -1 if the mempool is full
+     */
+    public synchronized long submit(String transaction, int difficulty){
+        if(this.pending.size() >= this.capacity) return -1;
+        long receipt = this.receipts++;
+        this.pending.add(new Pending(receipt, transaction, difficulty, System.currentTimeMillis()));
+        //Wake up the miner, it decides whether a block is due
+        notifyAll();
+        return receipt;
+    }
+
+    /**
+     * This method looks up the block holding a transaction.
+     * @param receipt the receipt number of the transaction
+     * @return index of the block, -1 while it is waiting or being mined, or -2 if the receipt is unknown or forgotten
+     */
+    public synchronized int status(long receipt){
+        Confirmation confirmation = this.confirmed.get(receipt);
+        if(confirmation != null) return confirmation.index;
+        if(receipt >= 0 && receipt < this.receipts && receipt >= firstRemembered()) return -1;
+        return -2;
+    }
+
+    /**
+     * This method waits until a transaction is mined or the timeout runs out.
+     * @param receipt the receipt number of the transaction
+     * @param timeout longest time to wait in milliseconds
+     * @return the same as status after waiting
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public synchronized int await(long receipt, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        int status = status(receipt);
+        while(status == -1){
+            long left = deadline - System.currentTimeMillis();
+            if(left <= 0) break;
+            wait(left);
+            status = status(receipt);
+        }
+        return status;
+    }
+
+    /**
+     * Getter for the number of transactions waiting to be mined
+     * @return number of pending transactions
+     */
+    public synchronized int getPendingCount(){
+        return this.pending.size();
+    }
+
+    /**
+     * This method takes back the transactions of blocks the chain dropped for the branch of a peer.
+     * A receipt confirmed in a dropped block points at the same transaction in the new branch if it is there,
+     * otherwise it is pending again. Dropped transactions without a receipt that the new branch does not hold
+     * are mined again under a new receipt. The caller holds the write lock of the chain.
+     * @param fork position of the first dropped block
+     * @param dropped the dropped blocks, in order
+     * @param added the blocks of the new branch, in order from fork
+     */
+    public synchronized void reorganize(int fork, List<Block> dropped, List<Block> added){
+
+        //Where the new branch holds each transaction, a transaction found twice is there twice
+        Map<String, Deque<Integer>> positions = new HashMap<>();
+        for(int k = 0; k < added.size(); k++){
+            for(String transaction : added.get(k).getContents()){
+                positions.computeIfAbsent(transaction, key -> new ArrayDeque<>()).add(fork + k);
+            }
+        }
+        //How many times the dropped blocks hold each transaction, the genesis block holds none
+        Map<String, Integer> orphans = new LinkedHashMap<>();
+        Map<String, Integer> difficulties = new HashMap<>();
+        for(Block block : dropped){
+            if(block.getIndex() == 0) continue;
+            for(String transaction : block.getContents()){
+                orphans.merge(transaction, 1, Integer::sum);
+                difficulties.putIfAbsent(transaction, block.getDifficulty());
+            }
+        }
+
+        //The miner puts back its own transactions if their block was dropped
+        for(Pending transaction : this.mining){
+            orphans.computeIfPresent(transaction.transaction, (key, count) -> count > 1 ? count - 1 : null);
+        }
+
+        //Receipts of the dropped blocks move to the new branch or become pending again, in the order they were handed out
+        List<Pending> again = new ArrayList<>();
+        Iterator<Confirmation> confirmations = this.confirmed.values().iterator();
+        while(confirmations.hasNext()){
+            Confirmation confirmation = confirmations.next();
+            if(confirmation.index < fork) continue;
+            String transaction = confirmation.transaction.transaction;
+            orphans.computeIfPresent(transaction, (key, count) -> count > 1 ? count - 1 : null);
+            Deque<Integer> found = positions.get(transaction);
+            if(found != null && !found.isEmpty()){
+                confirmation.index = found.poll();
+            }else{
+                confirmations.remove();
+                again.add(confirmation.transaction);
+            }
+        }
+
+        //Transactions added without the mempool get a receipt nobody holds, so they are mined again all the same
+        for(Map.Entry<String, Integer> orphan : orphans.entrySet()){
+            Deque<Integer> found = positions.get(orphan.getKey());
+            for(int i = 0; i < orphan.getValue(); i++){
+                if(found != null && found.poll() != null) continue;
+                again.add(new Pending(this.receipts++, orphan.getKey(), difficulties.get(orphan.getKey()), 0));
+            }
+        }
+
+        //They were accepted before anything waiting now, so they go in front
+        for(int i = again.size() - 1; i >= 0; i--){
+            this.pending.addFirst(again.get(i));
+        }
+        if(!again.isEmpty()) System.out.println("Mempool took back " + again.size() + " transactions of " + dropped.size() + " dropped blocks");
+        notifyAll();
+    }
+
+    /**
+     * This method returns the lowest receipt whose confirmation is still remembered, or the lowest unconfirmed receipt.
+     * @return the lowest receipt status can answer for
+     */
+    private long firstRemembered(){
+        if(this.confirmed.isEmpty()) return 0;
+        return this.confirmed.keySet().iterator().next();
+    }
+
+    /**
+     * This method runs on the miner thread, it packs pending transactions into blocks until the miner is stopped.
+     */
+    private void mineLoop(){
+
+        while(!Thread.currentThread().isInterrupted()){
+
+            List<Pending> batch = new ArrayList<>();
+            List<String> transactions = new ArrayList<>();
+            int difficulty = 1;
+
+            synchronized (this){
+                try {
+                    //Wait until a block is full or its oldest transaction has waited long enough
+                    while(true){
+                        if(this.pending.size() >= this.blockSize) break;
+                        if(!this.pending.isEmpty()){
+                            long left = this.pending.peek().arrived + this.maxDelay - System.currentTimeMillis();
+                            if(left <= 0) break;
+                            wait(left);
+                        }else{
+                            wait();
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                //Take the oldest transactions, the block gets the highest difficulty any of them asked for
+                while(batch.size() < this.blockSize && !this.pending.isEmpty()){
+                    Pending next = this.pending.poll();
+                    batch.add(next);
+                    transactions.add(next.transaction);
+                    difficulty = Math.max(difficulty, next.difficulty);
+                }
+                this.mining = batch;
+            }
+
+            //Mine outside the lock so transactions keep being accepted
+            Block block;
+            try {
+                block = this.blockchain.mineBlock(transactions, difficulty);
+            } catch (RuntimeException error) {
+                //Put the transactions back in front and try again a little later, or keep them there if the miner was stopped
+                synchronized (this){
+                    for(int i = batch.size() - 1; i >= 0; i--){
+                        this.pending.addFirst(batch.get(i));
+                    }
+                    this.mining = new ArrayList<>();
+                }
+                if(Thread.currentThread().isInterrupted()) return;
+                System.out.println("Mempool miner failed: " + error.getMessage());
+                try {
+                    Thread.sleep(Math.max(100, this.maxDelay));
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                continue;
+            }
+
+            //Record the confirmations and wake up everybody waiting for one, under the read lock of the chain
+            //so a switch to the branch of a peer comes either before, and the block is gone, or after, and takes them back
+            this.blockchain.lock.readLock().lock();
+            try {
+                synchronized (this){
+                    if(this.blockchain.holds(block)){
+                        for(Pending transaction : batch){
+                            this.confirmed.put(transaction.receipt, new Confirmation(transaction, block.getIndex()));
+                        }
+                    }else{
+                        for(int i = batch.size() - 1; i >= 0; i--){
+                            this.pending.addFirst(batch.get(i));
+                        }
+                    }
+                    this.mining = new ArrayList<>();
+                    notifyAll();
+                }
+            } finally {
+                this.blockchain.lock.readLock().unlock();
+            }
+        }
+    }
+}
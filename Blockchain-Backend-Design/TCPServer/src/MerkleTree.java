@@ -0,0 +1,115 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to commit a block to a list of transactions with a single hash.
+ * Transactions are the leaves of a binary hash tree whose root goes into the block header,
+ * so one transaction can be proven to be in a block with a logarithmic number of hashes.
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MerkleTree {
+
+    //Leaves and inner nodes are hashed with different prefixes, so an inner node can never pass for a transaction
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    //Every level of the tree, from the leaves up to the root
+    private final List<byte[][]> levels = new ArrayList<>();
+
+    /**
+     * This constructor hashes the transactions and every level above them.
+     * A node without a sibling is moved up to the next level unchanged.
+     * @param transactions the transactions, at least one
+     */
+    public MerkleTree(List<String> transactions){
+
+        if(transactions.isEmpty()) throw new IllegalArgumentException("A Merkle tree needs at least one transaction");
+
+        byte[][] level = new byte[transactions.size()][];
+        for(int i = 0; i < level.length; i++){
+            level[i] = hashLeaf(transactions.get(i));
+        }
+        this.levels.add(level);
+
+        while(level.length > 1){
+            byte[][] parent = new byte[(level.length + 1) / 2][];
+            for(int i = 0; i < parent.length; i++){
+                int left = 2 * i;
+                parent[i] = left + 1 < level.length ? hashNode(level[left], level[left + 1]) : level[left];
+            }
+            this.levels.add(parent);
+            level = parent;
+        }
+    }
+
+    /**
+     * Getter for the root
+     * @return hex String of the root hash
+     */
+    public String getRoot(){
+        return BlockHasher.toHex(this.levels.get(this.levels.size() - 1)[0]);
+    }
+
+    /**
+     * This method collects the sibling hashes on the path from a leaf to the root.
+     * Levels where the node has no sibling are skipped, the client (Client.verifyProof) works out which ones from the position and the count.
+     * @param position position of the transaction
+     * @return hex Strings of the sibling hashes, from the leaf up
+     */
+    public List<String> proof(int position){
+
+        if(position < 0 || position >= this.levels.get(0).length) throw new IndexOutOfBoundsException("No transaction " + position);
+
+        List<String> proof = new ArrayList<>();
+        int node = position;
+        for(int depth = 0; depth < this.levels.size() - 1; depth++){
+            byte[][] level = this.levels.get(depth);
+            int sibling = node ^ 1;
+            if(sibling < level.length) proof.add(BlockHasher.toHex(level[sibling]));
+            node >>= 1;
+        }
+        return proof;
+    }
+
+    /**
+     * This method computes the root of a list of transactions.
+     * @param transactions the transactions, at least one
+     * @return hex String of the root hash
+     */
+    public static String root(List<String> transactions){
+        return new MerkleTree(transactions).getRoot();
+    }
+
+    /**
+     * This method hashes a transaction into a leaf.
+     * @param transaction the transaction
+     * @return the raw hash
+     */
+    private static byte[] hashLeaf(String transaction){
+        MessageDigest digest = BlockHasher.sha256();
+        digest.update(LEAF);
+        try {
+            digest.update(transaction.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            //UTF-8 is always supported
+        }
+        return digest.digest();
+    }
+
+    /**
+     * This method hashes two children into their parent.
+     * @param left hash of the left child
+     * @param right hash of the right child
+     * @return the raw hash
+     */
+    private static byte[] hashNode(byte[] left, byte[] right){
+        MessageDigest digest = BlockHasher.sha256();
+        digest.update(NODE);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to watch the server while it runs.
+ * Request handlers, the miners and the verifiers record how long they take into fixed histograms and counters,
+ * and the metrics request or a small local HTTP endpoint prints all of them as plain text in the Prometheus format.
+ * Requests slower than a threshold are also printed one by one, so a slow request can be traced back to its type.
+ */
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+public class Metrics {
+
+    //Upper bounds of the histogram buckets in milliseconds, the last bucket takes everything above
+    private static final double[] BOUNDS = {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+    //The same bounds in seconds as they are printed
+    private static final String[] LABELS = new String[BOUNDS.length];
+    static {
+        for(int i = 0; i < BOUNDS.length; i++){
+            LABELS[i] = BigDecimal.valueOf(BOUNDS[i]).movePointLeft(3).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    /**
+     * This class counts durations in the buckets of BOUNDS without taking a lock.
+     */
+    public static class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        Histogram(){
+            for(int i = 0; i < this.buckets.length; i++){
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * This method records one duration.
+         * @param elapsed the duration in nanoseconds
+         */
+        public void record(long elapsed){
+            double millis = elapsed / 1e6;
+            int bucket = 0;
+            while(bucket < BOUNDS.length && millis > BOUNDS[bucket]) bucket++;
+            this.buckets[bucket].increment();
+            this.count.increment();
+            this.nanos.add(elapsed);
+        }
+
+        /**
+         * Getter for count
+         * @return number of durations recorded
+         */
+        public long getCount(){
+            return this.count.sum();
+        }
+
+        /**
+         * This method writes the histogram with cumulative buckets, the way Prometheus reads it.
+         * @param text where the lines go
+         * @param name name of the metric
+         * @param labels labels of the histogram without braces, may be empty
+         */
+        void write(StringBuilder text, String name, String labels){
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for(int i = 0; i < BOUNDS.length; i++){
+                cumulative += this.buckets[i].sum();
+                text.append(name).append("_bucket{").append(prefix).append("le=\"").append(LABELS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += this.buckets[BOUNDS.length].sum();
+            text.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+            text.append(name).append("_sum").append(braces).append(' ').append(this.nanos.sum() / 1e9).append('\n');
+            text.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    //Latency of every request type, by type number
+    private final Map<Integer, Histogram> requests = new ConcurrentHashMap<>();
+    //Requests that failed on the server side, by type number
+    private final Map<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+    //Time it took to mine each block that was added, including attempts lost to another block
+    private final Histogram mining = new Histogram();
+    //Blocks mined on a tip that changed before they could be added, and had to be mined again
+    private final LongAdder miningRetries = new LongAdder();
+    //Time of each validation of the chain
+    private final Histogram chainVerification = new Histogram();
+    //Time of each signature check
+    private final Histogram signatureVerification = new Histogram();
+    //Client connections open right now, and since startup
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder acceptedConnections = new LongAdder();
+    //Requests read from NIO connections and not answered yet
+    private final AtomicInteger inFlight = new AtomicInteger();
+    //Queue depths and other values read when the metrics are printed
+    private final Map<String, IntSupplier> gauges = new ConcurrentHashMap<>();
+    //Requests taking longer than this many milliseconds are printed, 0 prints none
+    private volatile long slowRequest = 0;
+    private final long started = System.currentTimeMillis();
+
+    /**
+     * This method returns the metrics of this process.
+     * @return the metrics
+     */
+    public static Metrics get(){
+        return INSTANCE;
+    }
+
+    /**
+     * This method records how long a request took, and prints it if it was slow.
+     * @param type request type, -1 if the request had none
+     * @param elapsed the duration in nanoseconds
+     */
+    public void recordRequest(int type, long elapsed){
+        this.requests.computeIfAbsent(type, key -> new Histogram()).record(elapsed);
+        long slow = this.slowRequest;
+        if(slow > 0 && elapsed >= slow * 1000000){
+            System.out.println("Slow request of type " + type + " took " + elapsed / 1000000 + " milliseconds");
+        }
+    }
+
+    /**
+     * This method counts a request that failed on the server side rather than because it was malformed.
+     * @param type request type, -1 if the request had none
+     */
+    public void recordError(int type){
+        this.errors.computeIfAbsent(type, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * This method records a block that was mined and added to the chain.
+     * @param elapsed time from the first attempt to the commit in nanoseconds
+     * @param retries how many times it was mined again because the tip changed
+     */
+    public void recordMining(long elapsed, int retries){
+        this.mining.record(elapsed);
+        this.miningRetries.add(retries);
+    }
+
+    /**
+     * This method records a validation of the chain.
+     * @param elapsed the duration in nanoseconds
+     */
+    public void recordChainVerification(long elapsed){
+        this.chainVerification.record(elapsed);
+    }
+
+    /**
+     * This method records a signature check.
+     * @param elapsed the duration in nanoseconds
+     */
+    public void recordSignatureVerification(long elapsed){
+        this.signatureVerification.record(elapsed);
+    }
+
+    /**
+     * This method counts a client connection that was opened.
+     */
+    public void connectionOpened(){
+        this.activeConnections.incrementAndGet();
+        this.acceptedConnections.increment();
+    }
+
+    /**
+     * This method counts a client connection that was closed.
+     */
+    public void connectionClosed(){
+        this.activeConnections.decrementAndGet();
+    }
+
+    /**
+     * This method counts requests that started or finished on an NIO connection.
+     * @param delta 1 for a request handed to a worker, -1 for an answered one
+     */
+    public void addInFlight(int delta){
+        this.inFlight.addAndGet(delta);
+    }
+
+    /**
+     * This method adds a value that is read every time the metrics are printed, such as the length of a queue.
+     * @param name name of the metric, without the blockchain_ prefix
+     * @param gauge reads the value
+     */
+    public void gauge(String name, IntSupplier gauge){
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * Setter for slowRequest
+     * @param millis requests taking at least this many milliseconds are printed, 0 to print none
+     */
+    public void setSlowRequest(long millis){
+        this.slowRequest = Math.max(0, millis);
+    }
+
+    /**
+     * This method prints every metric as plain text in the Prometheus exposition format.
+     * @return the metrics, one value per line
+     */
+    public String toText(){
+
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE blockchain_uptime_seconds gauge\n");
+        text.append("blockchain_uptime_seconds ").append((System.currentTimeMillis() - this.started) / 1000).append('\n');
+
+        text.append("# TYPE blockchain_request_seconds histogram\n");
+        for(Map.Entry<Integer, Histogram> entry : new TreeMap<>(this.requests).entrySet()){
+            entry.getValue().write(text, "blockchain_request_seconds", "type=\"" + entry.getKey() + "\"");
+        }
+
+        text.append("# TYPE blockchain_request_errors_total counter\n");
+        for(Map.Entry<Integer, LongAdder> entry : new TreeMap<>(this.errors).entrySet()){
+            text.append("blockchain_request_errors_total{type=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+
+        text.append("# TYPE blockchain_mining_seconds histogram\n");
+        this.mining.write(text, "blockchain_mining_seconds", "");
+        text.append("# TYPE blockchain_mining_retries_total counter\n");
+        text.append("blockchain_mining_retries_total ").append(this.miningRetries.sum()).append('\n');
+        //Every hash computed is one mining attempt
+        HashRate hashRate = HashRate.get();
+        text.append("# TYPE blockchain_mining_attempts_total counter\n");
+        text.append("blockchain_mining_attempts_total ").append(hashRate.getTotalHashes()).append('\n');
+        text.append("# TYPE blockchain_hashes_per_second gauge\n");
+        text.append("blockchain_hashes_per_second ").append(hashRate.getHashesPerSecond()).append('\n');
+
+        text.append("# TYPE blockchain_chain_verification_seconds histogram\n");
+        this.chainVerification.write(text, "blockchain_chain_verification_seconds", "");
+        text.append("# TYPE blockchain_signature_verification_seconds histogram\n");
+        this.signatureVerification.write(text, "blockchain_signature_verification_seconds", "");
+
+        text.append("# TYPE blockchain_active_connections gauge\n");
+        text.append("blockchain_active_connections ").append(this.activeConnections.get()).append('\n');
+        text.append("# TYPE blockchain_connections_total counter\n");
+        text.append("blockchain_connections_total ").append(this.acceptedConnections.sum()).append('\n');
+        text.append("# TYPE blockchain_requests_in_flight gauge\n");
+        text.append("blockchain_requests_in_flight ").append(this.inFlight.get()).append('\n');
+        for(Map.Entry<String, IntSupplier> entry : new TreeMap<>(this.gauges).entrySet()){
+            text.append("# TYPE blockchain_").append(entry.getKey()).append(" gauge\n");
+            text.append("blockchain_").append(entry.getKey()).append(' ').append(entry.getValue().getAsInt()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * This method serves the metrics over HTTP on the loopback address, at any path.
+     * @param port port to listen on
+     * @return the HTTP server, already started
+     * @throws IOException if the port cannot be bound
+     */
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
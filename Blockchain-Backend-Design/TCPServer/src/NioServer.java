@@ -0,0 +1,388 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to launch a non-blocking TCP server.
+ * A single selector thread accepts connections, reads newline framed requests and writes responses,
+ * so thousands of idle keep-alive clients cost no threads. Requests are executed on a small worker pool,
+ * and requests that may wait for a long time, such as mining or a receipt long-poll, on a separate pool so they cannot stall the rest.
+ * A connection is not read from while too many of its requests or responses are waiting, so one client cannot fill the heap.
+ */
+
+import org.json.simple.JSONObject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class NioServer {
+
+    //Size of the direct buffer the selector thread reads into
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    //Requests longer than this are rejected and the connection is closed
+    private static final int MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+    //Requests of one pipelined connection executed at the same time
+    private static final int MAX_IN_FLIGHT = 64;
+    //Reading from a connection pauses while this many of its requests wait to be executed
+    private static final int MAX_QUEUED_REQUESTS = 256;
+    //Reading from a connection pauses while this many bytes of its responses wait to be written
+    private static final long MAX_QUEUED_BYTES = 4L * 1024 * 1024;
+
+    private final BlockChain blockchain;
+    private final ExecutorService workers;
+    //Threads running requests that may block for a long time
+    private final ExecutorService blockingWorkers;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    //Work handed back to the selector thread by the workers
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * This class holds the state of one client connection.
+     * It is only touched by the selector thread.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        //Bytes of a request line that has not been terminated yet
+        final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        //Complete requests waiting to be executed
+        final Queue<String> requests = new ArrayDeque<>();
+        int inFlight = 0;
+        //Whether the client opened the connection with the protocol 2 handshake
+        boolean pipelined = false;
+        boolean firstLine = true;
+        //Streams of blocks being sent, one page is produced at a time once everything before it has been written
+        final Queue<ChainStream> streams = new ArrayDeque<>();
+        boolean streaming = false;
+        //Responses waiting to be written
+        final Queue<ByteBuffer> writes = new ArrayDeque<>();
+        long writeBytes = 0;
+        boolean closed = false;
+
+        Connection(SocketChannel channel){
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * This constructor opens the listening socket.
+     * @param blockchain the chain the requests operate on
+     * @param serverPort port to listen on
+     * @param workerThreads number of threads executing requests
+     * @param blockingThreads number of threads executing requests that may block, see Server.isBlocking
+     * @throws IOException if the socket cannot be opened
+     */
+    public NioServer(BlockChain blockchain, int serverPort, int workerThreads, int blockingThreads) throws IOException {
+        this.blockchain = blockchain;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerThreads));
+        this.blockingWorkers = Executors.newFixedThreadPool(Math.max(1, blockingThreads));
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(serverPort));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * This method runs the selector loop until the server is closed.
+     * @throws IOException if the selector fails
+     */
+    public void run() throws IOException {
+
+        try {
+            while(this.selector.isOpen()){
+
+                this.selector.select();
+
+                //Pick up responses finished by the workers
+                Runnable task;
+                while((task = this.selectorTasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) continue;
+                    try {
+                        if(key.isAcceptable()) accept();
+                        if(key.isValid() && key.isReadable()) read((Connection) key.attachment());
+                        if(key.isValid() && key.isWritable()) write((Connection) key.attachment());
+                    } catch (IOException error) {
+                        //A broken connection only affects that client
+                        if(key.attachment() != null) close((Connection) key.attachment());
+                    }
+                }
+            }
+        } finally {
+            this.workers.shutdownNow();
+            this.blockingWorkers.shutdownNow();
+        }
+    }
+
+    /**
+     * This method accepts every pending connection and registers it for reading.
+     * @throws IOException if a connection cannot be configured
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = this.serverChannel.accept()) != null){
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+            Metrics.get().connectionOpened();
+        }
+    }
+
+    /**
+     * This method reads what the client sent and splits it into newline terminated requests.
+     * @param connection the client connection
+     * @throws IOException if the connection fails
+     */
+    private void read(Connection connection) throws IOException {
+
+        while(true){
+            //Leave the rest in the socket until the queues drain
+            if(isFull(connection)){
+                updateReading(connection);
+                return;
+            }
+            this.readBuffer.clear();
+            int n = connection.channel.read(this.readBuffer);
+            if(n < 0){
+                //The client hung up, finish what was already requested before closing
+                connection.closed = true;
+                connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+                if(connection.inFlight == 0 && connection.writes.isEmpty()) close(connection);
+                return;
+            }
+            if(n == 0) return;
+            this.readBuffer.flip();
+
+            //Cut the bytes into lines
+            while(this.readBuffer.hasRemaining()){
+                byte b = this.readBuffer.get();
+                if(b == '\n'){
+                    String line = decode(connection.partial);
+                    connection.partial.reset();
+                    //A handshake on the first line switches the connection to pipelined requests
+                    if(connection.firstLine && Server.isHello(Server.readJSON(line))) connection.pipelined = true;
+                    connection.firstLine = false;
+                    connection.requests.add(line);
+                }else if(b != '\r'){
+                    connection.partial.write(b);
+                }
+            }
+            if(connection.partial.size() > MAX_REQUEST_SIZE) throw new IOException("Request too large");
+            dispatch(connection);
+        }
+    }
+
+    /**
+     * This method starts queued requests of a connection on the worker pool.
+     * A plain connection runs one request at a time so responses keep the request order.
+     * A pipelined connection runs up to MAX_IN_FLIGHT requests at once and answers them as they finish.
+     * @param connection the client connection
+     */
+    private void dispatch(Connection connection){
+
+        int limit = connection.pipelined ? MAX_IN_FLIGHT : 1;
+        while(connection.inFlight < limit && !connection.requests.isEmpty()){
+
+            String request = connection.requests.poll();
+            connection.inFlight++;
+            Metrics.get().addInFlight(1);
+
+            this.workers.execute(() -> {
+                JSONObject map = Server.readJSON(request);
+                //A stream is answered a page at a time as the client reads it, see pump
+                if(ChainStream.isStream(map)){
+                    ChainStream stream = new ChainStream(map, this.blockchain);
+                    this.selectorTasks.add(() -> {
+                        if(!connection.key.isValid()){
+                            connection.inFlight--;
+                            Metrics.get().addInFlight(-1);
+                            return;
+                        }
+                        connection.streams.add(stream);
+                        pump(connection);
+                    });
+                    this.selector.wakeup();
+                    return;
+                }
+                //Mining, long-polls and other slow requests wait on their own pool
+                if(Server.isBlocking(map)) this.blockingWorkers.execute(() -> respond(connection, map));
+                else respond(connection, map);
+            });
+        }
+        updateReading(connection);
+    }
+
+    /**
+     * This method executes a request and hands its response back to the selector thread.
+     * @param connection the client connection
+     * @param map the request
+     */
+    private void respond(Connection connection, JSONObject map){
+        String response = Server.respond(map, this.blockchain);
+        this.selectorTasks.add(() -> {
+            connection.inFlight--;
+            Metrics.get().addInFlight(-1);
+            if(!connection.key.isValid()) return;
+            queueWrite(connection, encode(response + "\n"));
+            dispatch(connection);
+        });
+        this.selector.wakeup();
+    }
+
+    /**
+     * This method queues bytes to be written to a connection.
+     * @param connection the client connection
+     * @param bytes the bytes
+     */
+    private void queueWrite(Connection connection, byte[] bytes){
+        connection.writes.add(ByteBuffer.wrap(bytes));
+        connection.writeBytes += bytes.length;
+        connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * This method checks whether a connection has too many requests or responses waiting to read any more.
+     * @param connection the client connection
+     * @return whether reading has to pause
+     */
+    private static boolean isFull(Connection connection){
+        return connection.requests.size() >= MAX_QUEUED_REQUESTS || connection.writeBytes >= MAX_QUEUED_BYTES;
+    }
+
+    /**
+     * This method stops reading from a connection while it is full and reads again once it has drained.
+     * @param connection the client connection
+     */
+    private void updateReading(Connection connection){
+        if(connection.closed || !connection.key.isValid()) return;
+        int ops = connection.key.interestOps();
+        connection.key.interestOps(isFull(connection) ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+    }
+
+    /**
+     * This method produces the next page of the oldest stream of a connection on the worker pool,
+     * once everything queued before it has been written, so a slow client never has more than one page waiting.
+     * The stream counts as one request in flight until its last line is produced.
+     * @param connection the client connection
+     */
+    private void pump(Connection connection){
+
+        if(connection.streaming || !connection.writes.isEmpty() || connection.streams.isEmpty()) return;
+        ChainStream stream = connection.streams.peek();
+        connection.streaming = true;
+
+        this.workers.execute(() -> {
+            String chunk = stream.nextChunk();
+            //Hand the page back to the selector thread
+            this.selectorTasks.add(() -> {
+                connection.streaming = false;
+                if(!connection.key.isValid()) return;
+                if(chunk == null){
+                    //The stream is over
+                    connection.streams.poll();
+                    connection.inFlight--;
+                    Metrics.get().addInFlight(-1);
+                    dispatch(connection);
+                    pump(connection);
+                    if(connection.closed && connection.inFlight == 0 && connection.writes.isEmpty()) close(connection);
+                    return;
+                }
+                queueWrite(connection, encode(chunk));
+                updateReading(connection);
+            });
+            this.selector.wakeup();
+        });
+    }
+
+    /**
+     * This method writes as many queued responses as the socket accepts.
+     * @param connection the client connection
+     * @throws IOException if the connection fails
+     */
+    private void write(Connection connection) throws IOException {
+
+        while(!connection.writes.isEmpty()){
+            ByteBuffer buffer = connection.writes.peek();
+            connection.channel.write(buffer);
+            //The socket is full, wait for the next write event
+            if(buffer.hasRemaining()) return;
+            connection.writes.poll();
+            connection.writeBytes -= buffer.limit();
+            updateReading(connection);
+        }
+
+        //Nothing left to write, go on with a stream
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+        pump(connection);
+        if(connection.closed && connection.inFlight == 0 && connection.requests.isEmpty()) close(connection);
+    }
+
+    /**
+     * This method closes a connection.
+     * @param connection the client connection
+     */
+    private void close(Connection connection){
+        if(connection.channel.isOpen()){
+            //Streams of a closed connection are dropped without finishing
+            Metrics.get().addInFlight(-connection.streams.size());
+            Metrics.get().connectionClosed();
+        }
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException error) {
+            //Ignore exception on close
+        }
+    }
+
+    /**
+     * This method stops the server.
+     * @throws IOException if the selector cannot be closed
+     */
+    public void close() throws IOException {
+        this.serverChannel.close();
+        this.selector.close();
+    }
+
+    /**
+     * This method decodes a request line.
+     * @param bytes UTF-8 bytes of the line
+     * @return the line
+     */
+    private static String decode(ByteArrayOutputStream bytes){
+        try {
+            return bytes.toString("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            return "";
+        }
+    }
+
+    /**
+     * This method encodes a response line.
+     * @param text the line
+     * @return UTF-8 bytes of the line
+     */
+    private static byte[] encode(String text){
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            return new byte[0];
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to replicate a blockchain between several servers.
+ * Every node listens on a peer port next to its client port. New blocks are announced to every peer as soon as they are added,
+ * and a node that falls behind or sits on another branch fetches the blocks it is missing in pages of binary records.
+ * The chain with the most work wins, and the lower tip hash between chains with the same work, so every node ends up on the same chain.
+ *
+ * Peer requests are JSON lines like client requests, but they are not signed: the peer port is meant for the nodes of one cluster,
+ * so it only listens on the loopback address unless another address is given. Lines and blocks longer than a fixed limit are refused.
+ * {"peer":"tip"} is answered with {"size","work","chainHash"}, {"peer":"hashes","from","count"} with {"hashes":[...]},
+ * {"peer":"blocks","from","count"} with {"count":k} followed by k blocks written by BlockCodec.write,
+ * and {"peer":"block"} followed by one such block is answered with {"result":"accepted|known|sync|rejected"}.
+ */
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class PeerNode {
+
+    //Most blocks or hashes sent for one request
+    private static final int PAGE_SIZE = 512;
+    //Time between two checks of the tip of every peer, in milliseconds
+    private static final long SYNC_INTERVAL = 2000;
+    //Time to wait for a peer to connect or answer, in milliseconds
+    private static final int TIMEOUT = 10000;
+    //Longest JSON line read from a peer, a page of hashes takes well below this
+    private static final int MAX_LINE = 1024 * 1024;
+
+    private final BlockChain blockchain;
+    private final InetAddress bindAddress;
+    private final int port;
+    private final List<Peer> peers = new ArrayList<>();
+    //Threads serving connections from other nodes
+    private final ExecutorService connectionPool = Executors.newCachedThreadPool(daemon("peer-connection"));
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(daemon("peer-sync"));
+    private ServerSocket listenSocket;
+    private volatile boolean stopped = false;
+
+    /**
+     * This class is the connection to one other node.
+     * Everything sent to a peer runs on its own thread, so one slow peer does not hold up the others.
+     */
+    private class Peer {
+
+        final String host;
+        final int port;
+        final ExecutorService executor;
+        //Whether a sync is already waiting on the executor
+        final AtomicBoolean syncQueued = new AtomicBoolean(false);
+        //Only touched on the executor thread
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private volatile boolean connected = false;
+        private volatile long lastSync = 0;
+
+        Peer(String host, int port){
+            this.host = host;
+            this.port = port;
+            this.executor = Executors.newSingleThreadExecutor(daemon("peer-" + host + ":" + port));
+        }
+
+        /**
+         * This method sends a request line and reads the JSON line answering it, connecting first if needed.
+         * @param request the request
+         * @param block a block written right after the request line, or null
+         * @return the answer
+         * @throws IOException if the peer cannot be reached or answers with something else than JSON
+         */
+        JSONObject request(JSONObject request, Block block) throws IOException {
+            try {
+                if(this.socket == null){
+                    Socket socket = new Socket();
+                    socket.connect(new InetSocketAddress(this.host, this.port), TIMEOUT);
+                    socket.setSoTimeout(TIMEOUT);
+                    socket.setTcpNoDelay(true);
+                    this.socket = socket;
+                    this.in = new BufferedInputStream(socket.getInputStream());
+                    this.out = new BufferedOutputStream(socket.getOutputStream());
+                }
+                this.out.write((request.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                if(block != null) BlockCodec.write(block, this.out);
+                this.out.flush();
+                JSONObject answer = readJSON(this.in);
+                if(answer == null) throw new IOException("Peer closed the connection");
+                this.connected = true;
+                return answer;
+            } catch (IOException error) {
+                close();
+                throw error;
+            }
+        }
+
+        /**
+         * This method drops the connection, the next request opens a new one.
+         */
+        void close(){
+            this.connected = false;
+            if(this.socket != null){
+                try {
+                    this.socket.close();
+                } catch (IOException ex) {
+                    //Nothing left to do with a broken connection
+                }
+            }
+            this.socket = null;
+        }
+
+        /**
+         * This method queues a sync with this peer, unless one is already waiting.
+         * @return the queued sync, or null if one was already waiting
+         */
+        Future<?> queueSync(){
+            if(!this.syncQueued.compareAndSet(false, true)) return null;
+            return this.executor.submit(() -> {
+                this.syncQueued.set(false);
+                try {
+                    sync(this);
+                    this.lastSync = System.currentTimeMillis();
+                } catch (IOException error) {
+                    //The peer is down, the next tick tries again
+                } catch (RuntimeException error) {
+                    System.out.println("Sync with " + this + " failed: " + error.getMessage());
+                    close();
+                }
+            });
+        }
+
+        @Override
+        public String toString(){
+            return this.host + ":" + this.port;
+        }
+    }
+
+    /**
+     * This constructor creates a node listening on the loopback address, it starts listening and syncing when start is called.
+     * @param blockchain the chain to replicate
+     * @param port the peer port other nodes connect to
+     * @param peerAddresses host:port of the peer port of every other node
+     */
+    public PeerNode(BlockChain blockchain, int port, List<String> peerAddresses){
+        this(blockchain, InetAddress.getLoopbackAddress(), port, peerAddresses);
+    }
+
+    /**
+     * This constructor creates a node, it starts listening and syncing when start is called.
+     * @param blockchain the chain to replicate
+     * @param bindAddress the address the peer port listens on, only nodes that can reach it can push blocks
+     * @param port the peer port other nodes connect to
+     * @param peerAddresses host:port of the peer port of every other node
+     */
+    public PeerNode(BlockChain blockchain, InetAddress bindAddress, int port, List<String> peerAddresses){
+        this.blockchain = blockchain;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        for(String address : peerAddresses){
+            int colon = address.lastIndexOf(':');
+            if(colon < 0) throw new IllegalArgumentException("Peer address must be host:port, not " + address);
+            this.peers.add(new Peer(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+    }
+
+    /**
+     * This method opens the peer port and starts checking the peers every few seconds.
+     * @throws IOException if the peer port cannot be opened
+     */
+    public void start() throws IOException {
+
+        this.listenSocket = new ServerSocket(this.port, 50, this.bindAddress);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while(true){
+                    Socket socket = this.listenSocket.accept();
+                    this.connectionPool.execute(() -> serve(socket));
+                }
+            } catch (IOException error) {
+                if(!this.listenSocket.isClosed()) System.out.println("IO Exception:" + error.getMessage());
+            }
+        }, "peer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        this.ticker.scheduleWithFixedDelay(this::syncAll, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method stops listening and syncing.
+     */
+    public void stop(){
+        this.stopped = true;
+        this.ticker.shutdownNow();
+        this.connectionPool.shutdownNow();
+        for(Peer peer : this.peers){
+            peer.executor.shutdownNow();
+        }
+        try {
+            if(this.listenSocket != null) this.listenSocket.close();
+        } catch (IOException ex) {
+            //Already closed
+        }
+    }
+
+    /**
+     * This method syncs with every peer once and waits until all of them are done, used before the node starts serving.
+     */
+    public void syncNow(){
+        List<Future<?>> syncs = new ArrayList<>();
+        for(Peer peer : this.peers){
+            Future<?> sync = peer.queueSync();
+            if(sync != null) syncs.add(sync);
+        }
+        for(Future<?> sync : syncs){
+            try {
+                sync.get();
+            } catch (Exception ex) {
+                //The failure was already reported by the sync itself
+            }
+        }
+    }
+
+    /**
+     * This method queues a sync with every peer without waiting for them.
+     */
+    public void syncAll(){
+        if(this.stopped) return;
+        for(Peer peer : this.peers){
+            peer.queueSync();
+        }
+    }
+
+    /**
+     * This method announces a new tip to every peer. It returns right away, the block is sent on the thread of each peer.
+     * @param block the new latest block
+     * @param hash the hash of the block
+     */
+    public void announce(Block block, String hash){
+        if(this.stopped) return;
+        for(Peer peer : this.peers){
+            peer.executor.execute(() -> {
+                try {
+                    JSONObject request = new JSONObject();
+                    request.put("peer", "block");
+                    //A peer that cannot place the block pulls the missing ones itself
+                    peer.request(request, block);
+                } catch (IOException error) {
+                    //The peer is down, it catches up by syncing once it is back
+                }
+            });
+        }
+    }
+
+    /**
+     * This method describes the peers for the status request.
+     * @return the peer port and whether every peer was reachable
+     */
+    public JSONObject toJSON(){
+        JSONObject obj = new JSONObject();
+        obj.put("port", this.port);
+        JSONArray peers = new JSONArray();
+        for(Peer peer : this.peers){
+            JSONObject entry = new JSONObject();
+            entry.put("address", peer.toString());
+            entry.put("connected", peer.connected);
+            entry.put("lastSync", peer.lastSync);
+            peers.add(entry);
+        }
+        obj.put("peers", peers);
+        return obj;
+    }
+
+    /**
+     * This method brings the chain up to the chain of a peer if the peer has more work.
+     * It finds the last block both chains share, fetches everything after it a page at a time,
+     * and replaces the blocks after the shared one. Runs on the thread of the peer.
+     * @param peer the peer to sync with
+     * @throws IOException if the peer cannot be reached
+     */
+    private void sync(Peer peer) throws IOException {
+
+        JSONObject request = new JSONObject();
+        request.put("peer", "tip");
+        JSONObject tip = peer.request(request, null);
+        int peerSize = ((Long) tip.get("size")).intValue();
+        double peerWork = ((Number) tip.get("work")).doubleValue();
+        String peerHash = (String) tip.get("chainHash");
+        this.blockchain.lock.readLock().lock();
+        try {
+            if(!BlockChain.isBetter(peerWork, peerHash, this.blockchain.getTotalWork(), this.blockchain.chainHash)) return;
+        } finally {
+            this.blockchain.lock.readLock().unlock();
+        }
+
+        int fork = findFork(peer, peerSize);
+
+        //Catching up on the same branch, every page adds work so it is added as soon as it is checked
+        boolean extending;
+        String previousHash;
+        this.blockchain.lock.readLock().lock();
+        try {
+            extending = fork == this.blockchain.getChainSize();
+            previousHash = fork == 0 ? "" : this.blockchain.hashOf(fork - 1);
+        } finally {
+            this.blockchain.lock.readLock().unlock();
+        }
+
+        List<Block> branch = new ArrayList<>();
+        List<String> branchHashes = new ArrayList<>();
+        int next = fork;
+        while(next < peerSize){
+            List<Block> page = fetchBlocks(peer, next, Math.min(PAGE_SIZE, peerSize - next));
+            if(page.isEmpty()) break;
+            List<String> hashes = this.blockchain.verifyBlocks(page, next, previousHash);
+            if(hashes == null){
+                System.out.println("Peer " + peer + " sent illegal blocks from " + next);
+                return;
+            }
+            if(extending){
+                if(!this.blockchain.replaceFrom(next, page, hashes)) return;
+            }else{
+                branch.addAll(page);
+                branchHashes.addAll(hashes);
+            }
+            next += page.size();
+            previousHash = hashes.get(hashes.size() - 1);
+        }
+
+        //Another branch is only taken as a whole, once it is known to have more work
+        if(!extending && this.blockchain.replaceFrom(fork, branch, branchHashes)){
+            System.out.println("Switched to the chain of " + peer + " from block " + fork);
+        }
+    }
+
+    /**
+     * This method finds the first position where the chain of a peer differs from this chain.
+     * Pages of hashes are compared going back from the end of the shorter chain until one of them is shared.
+     * @param peer the peer
+     * @param peerSize the number of blocks of the peer
+     * @return the position of the first block that is not shared
+     * @throws IOException if the peer cannot be reached
+     */
+    private int findFork(Peer peer, int peerSize) throws IOException {
+
+        int top;
+        this.blockchain.lock.readLock().lock();
+        try {
+            top = Math.min(this.blockchain.getChainSize(), peerSize);
+        } finally {
+            this.blockchain.lock.readLock().unlock();
+        }
+
+        while(top > 0){
+            int from = Math.max(0, top - PAGE_SIZE);
+            JSONObject request = new JSONObject();
+            request.put("peer", "hashes");
+            request.put("from", from);
+            request.put("count", top - from);
+            JSONArray hashes = (JSONArray) peer.request(request, null).get("hashes");
+
+            //Chains share a prefix, so the highest shared hash ends it
+            this.blockchain.lock.readLock().lock();
+            try {
+                for(int i = Math.min(top, from + hashes.size()) - 1; i >= from; i--){
+                    if(i < this.blockchain.getChainSize() && this.blockchain.hashOf(i).equals(hashes.get(i - from))) return i + 1;
+                }
+            } finally {
+                this.blockchain.lock.readLock().unlock();
+            }
+            top = from;
+        }
+        return 0;
+    }
+
+    /**
+     * This method fetches a page of blocks from a peer.
+     * @param peer the peer
+     * @param from position of the first block
+     * @param count number of blocks
+     * @return the blocks, fewer if the peer has fewer
+     * @throws IOException if the peer cannot be reached or sends malformed blocks
+     */
+    private List<Block> fetchBlocks(Peer peer, int from, int count) throws IOException {
+        JSONObject request = new JSONObject();
+        request.put("peer", "blocks");
+        request.put("from", from);
+        request.put("count", count);
+        int sent = ((Long) peer.request(request, null).get("count")).intValue();
+        List<Block> blocks = new ArrayList<>(sent);
+        for(int i = 0; i < sent; i++){
+            Block block = BlockCodec.read(peer.in);
+            if(block == null) throw new IOException("Peer closed the connection");
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    /**
+     * This method answers the requests of another node on one connection until it hangs up.
+     * @param socket the connection
+     */
+    private void serve(Socket socket){
+
+        try (Socket connection = socket) {
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+            JSONObject request;
+            while((request = readJSON(in)) != null && !this.stopped){
+                JSONObject obj = new JSONObject();
+                List<byte[]> records = null;
+                String kind = String.valueOf(request.get("peer"));
+                BlockChain blockchain = this.blockchain;
+
+                if(kind.equals("tip")){
+                    blockchain.lock.readLock().lock();
+                    try {
+                        obj.put("size", blockchain.getChainSize());
+                        obj.put("work", blockchain.getTotalWork());
+                        obj.put("chainHash", blockchain.chainHash);
+                    } finally {
+                        blockchain.lock.readLock().unlock();
+                    }
+
+                }else if(kind.equals("hashes") || kind.equals("blocks")){
+                    int from = ((Long) request.get("from")).intValue();
+                    int count = (int) Math.min(PAGE_SIZE, Math.max(0, (Long) request.get("count")));
+                    JSONArray hashes = new JSONArray();
+                    records = new ArrayList<>();
+                    //Encode under the read lock, write after releasing it
+                    blockchain.lock.readLock().lock();
+                    try {
+                        int to = Math.min(blockchain.getChainSize(), from + count);
+                        for(int i = Math.max(0, from); i < to; i++){
+                            if(kind.equals("hashes")) hashes.add(blockchain.hashOf(i));
+                            else records.add(BlockCodec.encode(blockchain.blocks.get(i)));
+                        }
+                    } finally {
+                        blockchain.lock.readLock().unlock();
+                    }
+                    if(kind.equals("hashes")) obj.put("hashes", hashes);
+                    else obj.put("count", records.size());
+
+                }else if(kind.equals("block")){
+                    Block block = BlockCodec.read(in);
+                    if(block == null) break;
+                    int result = blockchain.offerBlock(block);
+                    if(result == BlockChain.OFFER_ACCEPTED) obj.put("result", "accepted");
+                    else if(result == BlockChain.OFFER_KNOWN) obj.put("result", "known");
+                    else if(result == BlockChain.OFFER_REJECTED) obj.put("result", "rejected");
+                    else{
+                        obj.put("result", "sync");
+                        //Fetch the blocks before it from whoever has them
+                        syncAll();
+                    }
+
+                }else{
+                    obj.put("error", "Unknown peer request.");
+                }
+
+                out.write((obj.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                if(records != null && !kind.equals("hashes")){
+                    for(byte[] record : records){
+                        ByteArrayOutputStream length = new ByteArrayOutputStream(5);
+                        BlockCodec.writeVarLong(length, record.length);
+                        length.writeTo(out);
+                        out.write(record);
+                    }
+                }
+                out.flush();
+            }
+        } catch (IOException error) {
+            //The other node hung up
+        } catch (RuntimeException error) {
+            System.out.println("Malformed peer request: " + error.getMessage());
+        }
+    }
+
+    /**
+     * This method reads one JSON line from a stream that also carries binary blocks, so no reader buffers past the line.
+     * @param in the stream
+     * @return the parsed line, or null at the end of the stream
+     * @throws IOException if the stream fails, the line is longer than MAX_LINE or is not a JSON object
+     */
+    private static JSONObject readJSON(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while((b = in.read()) != '\n'){
+            if(b < 0){
+                if(line.size() == 0) return null;
+                throw new IOException("Truncated peer message");
+            }
+            if(line.size() >= MAX_LINE) throw new IOException("Peer message longer than " + MAX_LINE + " bytes");
+            line.write(b);
+        }
+        try {
+            return (JSONObject) new JSONParser().parse(new String(line.toByteArray(), StandardCharsets.UTF_8));
+        } catch (ParseException | ClassCastException error) {
+            throw new IOException("Malformed peer message");
+        }
+    }
+
+    /**
+     * This method creates a factory for named daemon threads.
+     * @param name the name of the threads
+     * @return the factory
+     */
+    private static java.util.concurrent.ThreadFactory daemon(String name){
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
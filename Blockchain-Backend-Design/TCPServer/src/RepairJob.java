@@ -0,0 +1,144 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to repair a blockchain in the background.
+ * Every illegal block is copied under the write lock, mined without any lock and stored again under the write lock,
+ * so the chain keeps serving requests while it is repaired. Each repaired block moves the verified prefix of the chain
+ * forward, and a persisted chain writes every repaired block to its store, so a repair that is stopped picks up
+ * at the first block it has not repaired yet instead of starting over.
+ */
+
+import org.json.simple.JSONObject;
+
+public class RepairJob implements Runnable {
+
+    private final BlockChain blockchain;
+    private volatile boolean running = true;
+    private volatile long started = 0;
+    private volatile long finished = 0;
+    //Position of the first illegal block when the repair started, -1 if the chain was valid
+    private volatile int firstInvalid = -1;
+    //Position of the block being repaired and size of the chain at that time
+    private volatile int position = -1;
+    private volatile int chainSize = 0;
+    private volatile int repaired = 0;
+    private volatile String error = null;
+
+    /**
+     * This constructor creates a repair of the given chain, it starts when run is called.
+     * @param blockchain the chain to repair
+     */
+    public RepairJob(BlockChain blockchain){
+        this.blockchain = blockchain;
+    }
+
+    /**
+     * This method repairs illegal blocks one after another until the chain is valid.
+     * A block depends on the hash of the one before it, so blocks are mined in order,
+     * each of them with all the mining workers of the chain.
+     */
+    @Override
+    public void run(){
+
+        this.started = System.currentTimeMillis();
+        try {
+            while(true){
+
+                //Find the next illegal block and copy it
+                int i;
+                Block copy;
+                this.blockchain.lock.writeLock().lock();
+                try {
+                    i = this.blockchain.nextToRepair();
+                    this.chainSize = this.blockchain.getChainSize();
+                    if(i < 0) break;
+                    if(this.firstInvalid < 0) this.firstInvalid = i;
+                    this.position = i;
+                    copy = this.blockchain.blocks.get(i).copyHeader();
+                } finally {
+                    this.blockchain.lock.writeLock().unlock();
+                }
+
+                //Mine without holding the lock
+                String hash = this.blockchain.mine(copy);
+
+                //Store the nonce, unless the block was changed in the meantime, then it is found again as illegal
+                this.blockchain.lock.writeLock().lock();
+                try {
+                    if(this.blockchain.commitRepair(i, copy, hash)) this.repaired++;
+                } finally {
+                    this.blockchain.lock.writeLock().unlock();
+                }
+            }
+        } catch (RuntimeException failure) {
+            this.error = String.valueOf(failure.getMessage());
+            System.out.println("Repair failed: " + this.error);
+        } finally {
+            this.finished = System.currentTimeMillis();
+            synchronized (this){
+                this.running = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * This method waits until the repair is over.
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public synchronized void await() throws InterruptedException {
+        while(this.running) wait();
+    }
+
+    /**
+     * Getter for running
+     * @return whether the repair is still going on
+     */
+    public boolean isRunning(){
+        return this.running;
+    }
+
+    /**
+     * This method returns how long the repair has been running, or ran.
+     * @return elapsed milliseconds
+     */
+    public long getElapsed(){
+        if(this.started == 0) return 0;
+        return (this.running ? System.currentTimeMillis() : this.finished) - this.started;
+    }
+
+    /**
+     * This method estimates how long the repair still takes from the average time per repaired block so far.
+     * @return remaining milliseconds, 0 once the repair is over, or -1 before the first block is repaired
+     */
+    public long getEta(){
+        if(!this.running) return 0;
+        if(this.repaired == 0) return -1;
+        long remaining = Math.max(0, this.chainSize - this.position);
+        return getElapsed() * remaining / this.repaired;
+    }
+
+    /**
+     * Getter for repaired
+     * @return number of blocks mined again so far
+     */
+    public int getRepaired(){
+        return this.repaired;
+    }
+
+    /**
+     * This method describes the progress of the repair for the status request.
+     * @return progress, ETA and outcome of the repair
+     */
+    public JSONObject toJSON(){
+        JSONObject obj = new JSONObject();
+        obj.put("running", this.running);
+        obj.put("first_invalid", this.firstInvalid);
+        obj.put("position", this.position);
+        obj.put("chain_size", this.chainSize);
+        obj.put("repaired", this.repaired);
+        obj.put("elapsed_time", getElapsed());
+        obj.put("eta", getEta());
+        if(this.error != null) obj.put("error", this.error);
+        return obj;
+    }
+}
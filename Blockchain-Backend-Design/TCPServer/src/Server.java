@@ -6,6 +6,7 @@
  * specified by the client (using the value it sent).
  */
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -13,27 +14,53 @@ import java.time.Clock;
 import java.math.BigInteger;
 import java.net.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.locks.ReadWriteLock;
 
 public class Server {
 
+    //Highest version of the wire protocol, version 2 allows pipelined requests tagged with "seq"
+    public static final int PROTOCOL_VERSION = 2;
+    //Most transactions accepted by one batch request
+    public static final int MAX_BATCH = 1000;
+    //Most pipelined requests whose signatures are checked together
+    public static final int VERIFY_BATCH = 64;
+    //Longest time a receipt request waits for its transaction to be mined
+    public static final int MAX_RECEIPT_WAIT = 30000;
+    //Most blocks returned by one page request
+    public static final int PAGE_LIMIT = 1000;
+
+    //Where the snapshot request writes the chain, null if snapshots are not enabled
+    private static volatile Path snapshotFile = null;
+
+    //Remembers the public keys of returning clients
+    public static final SignatureVerifier VERIFIER = new SignatureVerifier(1024);
+
     /**
      * Method connect contains the socket communication code.
-     * It also performs whichever operation requested by the client.
+     * Every accepted connection is served on a thread of a bounded pool, so a slow request does not hold up other clients.
+     * @param blockchain the chain the requests operate on
+     * @param serverPort port to listen on
+     * @param connections maximum number of connections served at the same time
      */
-    public static void connect(BlockChain blockchain){
+    public static void connect(BlockChain blockchain, int serverPort, int connections){
 
-        Socket clientSocket = null;
-        try {
-            //Allocate a port to the server
-            int serverPort = 7777;
-            //Create a new server socket
-            ServerSocket listenSocket = new ServerSocket(serverPort);
+        //Threads that serve one connection each
+        ThreadPoolExecutor connectionPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(connections);
+        //Connections accepted while every thread is busy wait in the queue of the pool
+        Metrics.get().gauge("connections_waiting", () -> connectionPool.getQueue().size());
+
+        try (ServerSocket listenSocket = new ServerSocket(serverPort)) {
 
             /*
              * Block waiting for a new connection request from a client.
@@ -44,152 +71,603 @@ public class Server {
             while(true) {
 
                 //Accept a connection on the server socket
-                clientSocket = listenSocket.accept();
+                Socket clientSocket = listenSocket.accept();
+                //Hand it over to the pool and go back to accepting
+                connectionPool.execute(() -> serve(clientSocket, blockchain));
+            }
+        //Handle exceptions
+        } catch (IOException error) {
+            System.out.println("IO Exception:" + error.getMessage());
+        } finally {
+            connectionPool.shutdownNow();
+        }
 
-                //Set up "in" to read from the client socket
-                Scanner in;
-                in = new Scanner(clientSocket.getInputStream());
+    }
 
-                //Set up "out" to write to the client socket
-                PrintWriter out;
-                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
+    /**
+     * Method serve reads requests from one client connection and writes a response for each of them.
+     * The connection stays open until the client closes it.
+     * Requests a pipelining client has already sent are taken together, so their signatures are checked in parallel.
+     * @param clientSocket the client connection
+     * @param blockchain the chain the requests operate on
+     */
+    public static void serve(Socket clientSocket, BlockChain blockchain){
 
-                //Read request data from the client
-                String request = in.nextLine();
-                JSONObject map = readJSON(request);
+        Metrics.get().connectionOpened();
+        try {
+            //Set up "in" to read from the client socket
+            BufferedReader in;
+            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+
+            //Set up "out" to write to the client socket
+            PrintWriter out;
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
+
+            //Read request data from the client until it hangs up
+            List<String> requests = new ArrayList<>();
+            String request;
+            while((request = in.readLine()) != null){
+                requests.add(request);
+                //Take the requests that are already waiting as well
+                while(requests.size() < VERIFY_BATCH && in.ready()){
+                    request = in.readLine();
+                    if(request == null) break;
+                    requests.add(request);
+                }
+                //send the messages back to client, a stream is written a page at a time between the others
+                List<JSONObject> maps = new ArrayList<>(requests.size());
+                for(String line : requests){
+                    maps.add(readJSON(line));
+                }
+                int from = 0;
+                for(int i = 0; i <= maps.size(); i++){
+                    if(i < maps.size() && !ChainStream.isStream(maps.get(i))) continue;
+                    for(String response : respondAllParsed(maps.subList(from, i), blockchain)){
+                        out.println(response);
+                    }
+                    if(i < maps.size()){
+                        ChainStream stream = new ChainStream(maps.get(i), blockchain);
+                        String chunk;
+                        while((chunk = stream.nextChunk()) != null){
+                            out.print(chunk);
+                            out.flush();
+                        }
+                    }
+                    from = i + 1;
+                }
+                out.flush();
+                requests.clear();
+            }
+        //Handle exceptions
+        } catch (IOException error) {
+            System.out.println("IO Exception:" + error.getMessage());
+        //If quitting (typically by you sending quit signal) clean up sockets
+        } finally {
+            Metrics.get().connectionClosed();
+            try {
+                clientSocket.close();
+            } catch (IOException error) {
+                //Ignore exception on close
+            }
+        }
+    }
 
-                //Check user id and signature
-                boolean valid = check(map);
+    /**
+     * Method respond parses one request line and performs it.
+     * A {"protocol":2} line switches the connection to the pipelined protocol: the client may then send many requests
+     * without waiting, each tagged with a "seq" number that is copied into its response so the client can match them up.
+     * @param request JSON representation of the request
+     * @param blockchain the chain the request operates on
+     * @return JSON representation of the response
+     */
+    public static String respond(String request, BlockChain blockchain){
+        return respond(readJSON(request), null, blockchain);
+    }
 
-                //If valid, perform option chosen by user
-                if (valid) {
+    /**
+     * Method respond performs one request that was already parsed.
+     * @param map the request
+     * @param blockchain the chain the request operates on
+     * @return JSON representation of the response
+     */
+    public static String respond(JSONObject map, BlockChain blockchain){
+        return respond(map, null, blockchain);
+    }
 
-                    int type = ((Long) map.get("type")).intValue();
+    /**
+     * Method respondAll performs a batch of requests in order.
+     * The signatures of all of them are checked in parallel up front.
+     * @param requests JSON representations of the requests
+     * @param blockchain the chain the requests operate on
+     * @return JSON representations of the responses, in the order of the requests
+     */
+    public static List<String> respondAll(List<String> requests, BlockChain blockchain){
 
-                    //If choosing option 0
-                    if(type == 0){
+        List<JSONObject> maps = new ArrayList<>(requests.size());
+        for(String request : requests){
+            maps.add(readJSON(request));
+        }
+        return respondAllParsed(maps, blockchain);
+    }
 
-                        //Make required information into a JSON format message
-                        JSONObject obj = new JSONObject();
-                        obj.put("chain_size", blockchain.getChainSize());
-                        obj.put("hashesPerSecond", blockchain.hashesPerSecond());
-                        Block latestBlock = blockchain.getLatestBlock();
-                        obj.put("latestDifficulty", latestBlock.getDifficulty());
-                        obj.put("latestNonce", latestBlock.getNonce());
-                        obj.put("chainHash", blockchain.chainHash);
-                        String response = obj.toString();
-                        //send the message back to client
-                        out.println(response);
-                        out.flush();
-
-                    //If choosing option 1
-                    }else if(type == 1){
-
-                        //Retrieve difficulty and transaction from the request
-                        int difficulty = ((Long) map.get("param1")).intValue();
-                        String transaction = (String) map.get("param2");
-
-                        //Calculate executed time to generate and add a new block
-                        Clock clock = Clock.systemDefaultZone();
-                        long t0 = clock.millis();
-                        //Generate and add a new block to blockchain
-                        Block newBlock = new Block(blockchain.getChainSize(), blockchain.getTime(), transaction, difficulty);
-                        blockchain.addBlock(newBlock);
-                        long t1 = clock.millis();
-
-                        //Make required information into a JSON format message
-                        JSONObject obj = new JSONObject();
-                        obj.put("elapsed_time", t1-t0);
-                        String response = obj.toString();
-                        //Send the message back to client
-                        out.println(response);
-                        out.flush();
-
-                    //If choose option 2
-                    }else if(type == 2){
-
-                        //Calculate executed time to check if the chain is valid
-                        Clock clock = Clock.systemDefaultZone();
-                        long t0 = clock.millis();
-                        boolean check = blockchain.isChainValid();
-                        long t1 = clock.millis();
-
-                        //Make required information into a JSON format message
-                        JSONObject obj = new JSONObject();
-                        obj.put("elapsed_time", t1-t0);
-                        obj.put("valid", check);
-                        String response = obj.toString();
-                        //Send the message back to client
-                        out.println(response);
-                        out.flush();
+    /**
+     * Method respondAllParsed performs a batch of parsed requests in order.
+     * @param maps the requests
+     * @param blockchain the chain the requests operate on
+     * @return JSON representations of the responses, in the order of the requests
+     */
+    private static List<String> respondAllParsed(List<JSONObject> maps, BlockChain blockchain){
 
-                    //If choosing option 3
-                    }else if(type == 3){
+        if(maps.size() <= 1){
+            List<String> responses = new ArrayList<>(1);
+            for(JSONObject map : maps) responses.add(respond(map, null, blockchain));
+            return responses;
+        }
+        boolean[] verified = VERIFIER.verifyAll(maps);
 
-                        //Retrieve JSON representation of blockchain
-                        String output = blockchain.toString();
+        List<String> responses = new ArrayList<>(maps.size());
+        for(int i = 0; i < maps.size(); i++){
+            responses.add(respond(maps.get(i), verified[i], blockchain));
+        }
+        return responses;
+    }
 
-                        //Make required information into a JSON format message
-                        JSONObject obj = new JSONObject();
-                        obj.put("output", output);
-                        String response = obj.toString();
-                        //Send the message back to client
-                        out.println(response);
-                        out.flush();
+    /**
+     * Method respond performs one parsed request.
+     * @param map the request
+     * @param verified whether the signature of the request was already checked, null to check it here
+     * @param blockchain the chain the request operates on
+     * @return JSON representation of the response
+     */
+    private static String respond(JSONObject map, Boolean verified, BlockChain blockchain){
+
+        JSONObject obj;
 
-                    //If choosing option 4
-                    }else if(type == 4){
+        //Answer the protocol handshake with the highest version this server speaks
+        if(isHello(map)){
+            obj = new JSONObject();
+            obj.put("protocol", PROTOCOL_VERSION);
+            return obj.toString();
+        }
 
-                        //Retrieve index and transaction from the request
-                        int index = ((Long) map.get("param1")).intValue();
-                        String transaction = (String) map.get("param2");
+        //Time every request by its type, a request without a type counts as -1
+        Object type = map.get("type");
+        int typeNumber = type instanceof Long ? ((Long) type).intValue() : -1;
 
-                        //Modify data of the specified block
-                        blockchain.blocks.get(index).setData(transaction);
+        long t0 = System.nanoTime();
+        try {
+            obj = verified == null ? handle(map, blockchain) : handle(map, verified, blockchain);
+        } catch (ClassCastException | NullPointerException | NumberFormatException error) {
+            //A request with missing or mistyped fields gets an error instead of closing the connection
+            obj = new JSONObject();
+            obj.put("error", "Malformed request.");
+        } catch (RuntimeException error) {
+            //Anything else failed on this side, such as the block store, and is reported and counted as such
+            System.out.println("Server error on request of type " + typeNumber + ": " + error);
+            Metrics.get().recordError(typeNumber);
+            obj = new JSONObject();
+            obj.put("error", "Server error: " + error.getMessage());
+        }
+        Metrics.get().recordRequest(typeNumber, System.nanoTime() - t0);
 
-                        //Make required information into a JSON format message
-                        JSONObject obj = new JSONObject();
-                        obj.put("index", index);
-                        obj.put("Tx", blockchain.blocks.get(index).getData());
-                        String response = obj.toString();
-                        //Send the message back to client
-                        out.println(response);
-                        out.flush();
-
-                    //If recieve option 5
-                    }else if(type == 5){
-
-                        //Calculate executed time to repair the blockchain
-                        Clock clock = Clock.systemDefaultZone();
-                        long t0 = clock.millis();
-                        blockchain.repairChain();
-                        long t1 = clock.millis();
-
-                        //Make required information into a JSON format message
-                        JSONObject obj = new JSONObject();
-                        obj.put("elapsed_time", t1-t0);
-                        String response = obj.toString();
-                        //Send the message back to client
-                        out.println(response);
-                        out.flush();
+        //Correlate the response with a pipelined request
+        if(map.containsKey("seq")) obj.put("seq", map.get("seq"));
+        return obj.toString();
+    }
 
-                    }
+    /**
+     * Method isBlocking checks whether a request may keep its thread for a long time:
+     * it mines blocks, waits for the mempool or a repair, or walks the whole chain.
+     * @param map the request
+     * @return whether the request may block
+     */
+    public static boolean isBlocking(JSONObject map){
+        Object type = map.get("type");
+        if(!(type instanceof Long)) return false;
+        switch(((Long) type).intValue()){
+            case 1: case 2: case 5: case 6: case 8: case 14:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Method isHello checks whether a request is the handshake that opens a pipelined connection.
+     * @param map the request
+     * @return whether the request asks for a protocol version
+     */
+    public static boolean isHello(JSONObject map){
+        return map.containsKey("protocol") && !map.containsKey("type");
+    }
+
+    /**
+     * Method handle performs whichever operation requested by the client.
+     * Reads run under the read lock of the chain and changes under the write lock.
+     * Mining for a new block happens outside the lock, see BlockChain.mineBlock.
+     * @param map the request
+     * @param blockchain the chain the request operates on
+     * @return the response
+     */
+    public static JSONObject handle(JSONObject map, BlockChain blockchain){
+        return handle(map, check(map), blockchain);
+    }
+
+    /**
+     * Method handle performs whichever operation requested by the client, once its signature has been checked.
+     * @param map the request
+     * @param verified whether the id and signature of the request are valid
+     * @param blockchain the chain the request operates on
+     * @return the response
+     */
+    public static JSONObject handle(JSONObject map, boolean verified, BlockChain blockchain){
+
+        //Check user id and signature
+        if(!verified){
+            JSONObject obj = new JSONObject();
+            obj.put("error", "Invalid id and signature.");
+            return obj;
+        }
+
+        int type = ((Long) map.get("type")).intValue();
+        ReadWriteLock lock = blockchain.lock;
+        JSONObject obj = new JSONObject();
+
+        //A request adding or changing a transaction without one would leave a block with no data to hash or store
+        if((type == 1 || type == 4 || type == 7) && !(map.get("param2") instanceof String)){
+            obj.put("error", "param2 must hold the transaction.");
+            return obj;
+        }
+
+        //If choosing option 0
+        if(type == 0){
+
+            //Read the measured hash rate, this does not hash anything
+            int hashesPerSecond = blockchain.hashesPerSecond();
+            obj.put("hashRate", HashRate.get().toJSON());
+
+            //Make required information into a JSON format message
+            Mempool mempool = blockchain.getMempool();
+            if(mempool != null) obj.put("pending", mempool.getPendingCount());
+            RepairJob repairJob = blockchain.getRepairJob();
+            if(repairJob != null) obj.put("repair", repairJob.toJSON());
+            PeerNode peers = blockchain.getPeers();
+            if(peers != null) obj.put("peers", peers.toJSON());
+            lock.readLock().lock();
+            try {
+                obj.put("chain_size", blockchain.getChainSize());
+                obj.put("hashesPerSecond", hashesPerSecond);
+                Block latestBlock = blockchain.getLatestBlock();
+                obj.put("latestDifficulty", latestBlock.getDifficulty());
+                if(latestBlock.getTarget() != null) obj.put("latestTarget", latestBlock.getTarget().toString());
+                //Difficulty the next block gets when the same difficulty is asked for again, it may be a fraction
+                obj.put("nextDifficulty", blockchain.nextDifficulty(latestBlock.getFineDifficulty()));
+                obj.put("latestNonce", latestBlock.getNonce());
+                obj.put("chainHash", blockchain.chainHash);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+        //If choosing option 1
+        }else if(type == 1){
+
+            //Retrieve difficulty and transaction from the request
+            int difficulty = ((Long) map.get("param1")).intValue();
+            String transaction = (String) map.get("param2");
+
+            //Calculate executed time to generate and add a new block
+            Clock clock = Clock.systemDefaultZone();
+            long t0 = clock.millis();
+            //Generate and add a new block to blockchain, its difficulty may be retargeted
+            Block newBlock = blockchain.mineBlock(transaction, difficulty);
+            long t1 = clock.millis();
+
+            //Make required information into a JSON format message
+            obj.put("elapsed_time", t1-t0);
+            obj.put("difficulty", newBlock.getFineDifficulty());
+
+        //If choose option 2
+        }else if(type == 2){
+
+            //Calculate executed time to check if the chain is valid
+            Clock clock = Clock.systemDefaultZone();
+            long t0 = clock.millis();
+            boolean check;
+            lock.readLock().lock();
+            try {
+                check = blockchain.isChainValid();
+            } finally {
+                lock.readLock().unlock();
+            }
+            long t1 = clock.millis();
+
+            //Make required information into a JSON format message
+            obj.put("elapsed_time", t1-t0);
+            obj.put("valid", check);
+
+        //If choosing option 3
+        }else if(type == 3){
+
+            //Retrieve JSON representation of blockchain
+            String output;
+            lock.readLock().lock();
+            try {
+                output = blockchain.toString();
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            //Make required information into a JSON format message
+            obj.put("output", output);
+
+        //If choosing option 12
+        }else if(type == 12){
+
+            //Retrieve the first index and the number of blocks from the request
+            int from = Math.max(0, ((Long) map.get("param1")).intValue());
+            String param2 = (String) map.get("param2");
+            int limit = param2 == null || param2.isEmpty() ? PAGE_LIMIT : Math.max(0, Math.min(PAGE_LIMIT, Integer.parseInt(param2)));
+
+            //Write only the requested page of the blockchain
+            StringWriter output = new StringWriter();
+            int to;
+            int chainSize;
+            lock.readLock().lock();
+            try {
+                chainSize = blockchain.getChainSize();
+                to = Math.min(chainSize, from + limit);
+                output.write("[");
+                for(int i = from; i < to; i++){
+                    if(i > from) output.write(",\n");
+                    blockchain.blocks.get(i).writeJSON(output);
                 }
+                output.write("]");
+            } catch (IOException error) {
+                //A StringWriter does not throw
+                to = from;
+                chainSize = 0;
+            } finally {
+                lock.readLock().unlock();
             }
-        //Handle exceptions
-        } catch (IOException error) {
-            System.out.println("IO Exception:" + error.getMessage());
-        //If quitting (typically by you sending quit signal) clean up sockets
-        } finally {
+
+            //Make required information into a JSON format message
+            obj.put("output", output.toString());
+            obj.put("from", from);
+            obj.put("next", Math.max(from, to));
+            obj.put("chain_size", chainSize);
+
+        //If choosing option 4
+        }else if(type == 4){
+
+            //Retrieve index and transaction from the request
+            int index = ((Long) map.get("param1")).intValue();
+            String transaction = (String) map.get("param2");
+
+            lock.writeLock().lock();
             try {
-                if (clientSocket != null) {
-                    clientSocket.close();
+                if(index < 0 || index >= blockchain.getChainSize()){
+                    obj.put("error", "Invalid index.");
+                }else{
+                    //Modify data of the specified block
+                    blockchain.blocks.get(index).setData(transaction);
+
+                    //Make required information into a JSON format message
+                    obj.put("index", index);
+                    obj.put("Tx", blockchain.blocks.get(index).getData());
                 }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+        //If recieve option 5
+        }else if(type == 5){
+
+            //Repair the blockchain in the background, other requests are served while blocks are mined
+            Clock clock = Clock.systemDefaultZone();
+            long t0 = clock.millis();
+            RepairJob job = blockchain.startRepair();
+
+            //With param1 equal to 1 answer right away, the progress shows up in the status request
+            if(((Long) map.get("param1")).intValue() == 1){
+                obj.put("repair", job.toJSON());
+                return obj;
+            }
+
+            //Otherwise wait for the repair to finish, like before
+            try {
+                job.await();
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+            long t1 = clock.millis();
+
+            //Make required information into a JSON format message
+            obj.put("elapsed_time", t1-t0);
+
+        //If choosing option 6
+        }else if(type == 6){
+
+            //Retrieve difficulty and the JSON array of transactions from the request
+            int difficulty = ((Long) map.get("param1")).intValue();
+            JSONArray transactions;
+            try {
+                transactions = (JSONArray) new JSONParser().parse((String) map.get("param2"));
+            } catch (ParseException | ClassCastException error) {
+                obj.put("error", "param2 must be a JSON array of transactions.");
+                return obj;
+            }
+            if(transactions.size() > MAX_BATCH){
+                obj.put("error", "At most " + MAX_BATCH + " transactions per batch.");
+                return obj;
+            }
+
+            //Calculate executed time to add every transaction as its own block
+            Clock clock = Clock.systemDefaultZone();
+            long t0 = clock.millis();
+            long firstIndex = -1;
+            for(Object transaction : transactions){
+                Block newBlock = blockchain.mineBlock(String.valueOf(transaction), difficulty);
+                if(firstIndex < 0) firstIndex = newBlock.getIndex();
+            }
+            long t1 = clock.millis();
+
+            //Make required information into a JSON format message
+            obj.put("count", transactions.size());
+            obj.put("first_index", firstIndex);
+            obj.put("elapsed_time", t1-t0);
+
+        //If choosing option 7
+        }else if(type == 7){
+
+            //Retrieve difficulty and transaction from the request
+            int difficulty = ((Long) map.get("param1")).intValue();
+            String transaction = (String) map.get("param2");
+
+            //Hand the transaction to the background miner
+            Mempool mempool = blockchain.getMempool();
+            long receipt = mempool == null ? -1 : mempool.submit(transaction, difficulty);
+
+            //Make required information into a JSON format message
+            if(mempool == null) obj.put("error", "Mempool is not running.");
+            else if(receipt < 0) obj.put("error", "Mempool is full.");
+            else obj.put("receipt", receipt);
+
+        //If choosing option 8
+        }else if(type == 8){
+
+            //Retrieve receipt and how long to wait for it from the request
+            long receipt = (Long) map.get("param1");
+            String param2 = (String) map.get("param2");
+            long wait = param2 == null || param2.isEmpty() ? 0 : Math.min(MAX_RECEIPT_WAIT, Long.parseLong(param2));
+
+            Mempool mempool = blockchain.getMempool();
+            if(mempool == null){
+                obj.put("error", "Mempool is not running.");
+                return obj;
+            }
+            int status;
+            try {
+                status = mempool.await(receipt, wait);
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                status = mempool.status(receipt);
+            }
+
+            //Make required information into a JSON format message
+            obj.put("receipt", receipt);
+            if(status >= 0){
+                obj.put("status", "confirmed");
+                obj.put("index", status);
+            }else{
+                obj.put("status", status == -1 ? "pending" : "unknown");
+            }
+
+        //If choosing option 9
+        }else if(type == 9){
+
+            //Retrieve index and transaction from the request
+            int index = ((Long) map.get("param1")).intValue();
+            String transaction = (String) map.get("param2");
+
+            lock.readLock().lock();
+            try {
+                List<String> transactions = index < 0 || index >= blockchain.getChainSize() ? null
+                        : blockchain.blocks.get(index).getTransactions();
+                int position = transactions == null ? -1 : transactions.indexOf(transaction);
+                if(position < 0){
+                    obj.put("error", "Transaction not found in block " + index + ".");
+                }else{
+                    //Make required information into a JSON format message
+                    JSONArray proof = new JSONArray();
+                    proof.addAll(new MerkleTree(transactions).proof(position));
+                    obj.put("index", index);
+                    obj.put("position", position);
+                    obj.put("count", transactions.size());
+                    obj.put("root", blockchain.blocks.get(index).getData());
+                    obj.put("proof", proof);
+                    //The rest of the header, so the client can hash the block and check the root against a hash it trusts
+                    Block block = blockchain.blocks.get(index);
+                    obj.put("timestamp", block.getTimestamp().toString());
+                    obj.put("previousHash", block.getPreviousHash());
+                    obj.put("nonce", block.getNonce().toString());
+                    obj.put("difficulty", block.getDifficultyText());
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+        //If choosing option 10
+        }else if(type == 10){
+
+            //Retrieve block hash from the request
+            String hash = (String) map.get("param2");
+
+            lock.readLock().lock();
+            try {
+                int index = blockchain.index.findBlock(hash);
+                //Make required information into a JSON format message
+                if(index < 0){
+                    obj.put("error", "No block with hash " + hash + ".");
+                }else{
+                    obj.put("index", index);
+                    obj.put("block", blockchain.blocks.get(index).toString());
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+        //If choosing option 11
+        }else if(type == 11){
+
+            //Retrieve the transaction, or its hash when param1 is 1, from the request
+            int byHash = ((Long) map.get("param1")).intValue();
+            String param2 = (String) map.get("param2");
+            String hash = byHash == 1 ? param2 : BlockHasher.hashText(param2);
+
+            //Make required information into a JSON format message
+            JSONArray indexes = new JSONArray();
+            lock.readLock().lock();
+            try {
+                indexes.addAll(blockchain.index.findTransaction(hash));
+            } finally {
+                lock.readLock().unlock();
+            }
+            obj.put("hash", hash);
+            obj.put("indexes", indexes);
+
+        //If choosing option 14
+        }else if(type == 14){
+
+            //Write the chain to the snapshot file a new node can start from
+            Path file = snapshotFile;
+            if(file == null){
+                obj.put("error", "Snapshots are not enabled.");
+                return obj;
+            }
+            Clock clock = Clock.systemDefaultZone();
+            long t0 = clock.millis();
+            try {
+                obj.put("count", Snapshot.export(blockchain, file));
             } catch (IOException error) {
-                //Ignore exception on close
+                obj.put("error", "Snapshot failed: " + error.getMessage());
+                return obj;
             }
+            long t1 = clock.millis();
+
+            //Make required information into a JSON format message
+            obj.put("elapsed_time", t1-t0);
+
+        //If choosing option 15
+        }else if(type == 15){
+
+            //Make the metrics of the server into plain text, one value per line
+            obj.put("output", Metrics.get().toText());
+
+        }else{
+            obj.put("error", "Unknown request type " + type + ".");
         }
 
+        return obj;
     }
 
     /**
@@ -206,7 +684,10 @@ public class Server {
             obj = (JSONObject) parser.parse(request);
         } catch (ParseException e) {
             e.printStackTrace();
+        } catch (ClassCastException e) {
+            //Valid JSON that is not an object is treated like an empty request
         }
+        if(obj == null) obj = new JSONObject();
         return obj;
     }
 
@@ -219,9 +700,9 @@ public class Server {
     public static byte[] SHA256Hash(String text) {
 
         try {
-            //Create a SHA256 digest
+            //Reuse the SHA256 digest of this thread
             MessageDigest digest;
-            digest = MessageDigest.getInstance("SHA-256");
+            digest = BlockHasher.sha256();
             //Allocate room for the result of the hash
             byte[] hashBytes;
             //Perform the hash
@@ -230,9 +711,6 @@ public class Server {
             hashBytes = digest.digest();
             return hashBytes;
         }
-        catch (NoSuchAlgorithmException nsa) {
-            System.out.println("No such algorithm exception thrown " + nsa);
-        }
         catch (UnsupportedEncodingException uee ) {
             System.out.println("Unsupported encoding exception thrown " + uee);
         }
@@ -276,43 +754,13 @@ public class Server {
 
     /**
      * Method check checks if the user ID is hashed properly, and if the request is properly signed
+     * The public keys of returning clients are remembered by the verifier, see SignatureVerifier.
      * @return whether operation is valid to resume
      */
     public static boolean check(Map map){
 
-        String id = (String) map.get("id");
-        BigInteger e = new BigInteger((String) map.get("e"));
-        BigInteger n = new BigInteger((String) map.get("n"));
-        int type = ((Long) map.get("type")).intValue();
-        int param1 = ((Long) map.get("param1")).intValue();
-        String param2 = (String) map.get("param2");
-        String signature = (String) map.get("signature");
-
-        //Recreate the user id with public keys
-        String IDtoCheck = generateID(e,n);
-
-        //Take the encrypted string and make it a big integer
-        BigInteger encryptedHash = new BigInteger(signature);
-        //Decrypt it
-        BigInteger decryptedHash = encryptedHash.modPow(e, n);
-
-        //Retrieve the origin hashed message
-        JSONObject obj = new JSONObject();
-        obj.put("id", id);
-        obj.put("e", e.toString());
-        obj.put("n", n.toString());
-        obj.put("type",type);
-        obj.put("param1", param1);
-        obj.put("param2", param2);
-        String messageToCheck = obj.toString();
-
-        byte[] bytes = SHA256Hash(messageToCheck);
-        //Retrieve the BigInteger created by the hash
-        BigInteger m = new BigInteger(bytes);
-        BigInteger bigIntegerToCheck = new BigInteger(1,bytes);
-
         //Check if the id and signature are valid, return the result
-        if((bigIntegerToCheck.compareTo(decryptedHash) == 0) && (IDtoCheck.equals(id))){
+        if(VERIFIER.verify(map)){
             System.out.println("Valid id and signature.");
             return true;
         }
@@ -322,25 +770,200 @@ public class Server {
         }
     }
 
+    /**
+     * This method reads an integer option of the form --name=value from the command line arguments.
+     * @param args command line arguments
+     * @param name option name without the leading dashes
+     * @param defaultValue value used when the option is absent or malformed
+     * @return the option value
+     */
+    public static int intOption(String[] args, String name, int defaultValue){
+        String prefix = "--" + name + "=";
+        for(String arg : args){
+            if(arg.startsWith(prefix)){
+                try {
+                    return Integer.parseInt(arg.substring(prefix.length()));
+                } catch (NumberFormatException ex) {
+                    System.out.println("Invalid value for " + name + ", using " + defaultValue);
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * This method reads a String option of the form --name=value from the command line arguments.
+     * @param args command line arguments
+     * @param name option name without the leading dashes
+     * @param defaultValue value used when the option is absent
+     * @return the option value
+     */
+    public static String stringOption(String[] args, String name, String defaultValue){
+        String prefix = "--" + name + "=";
+        for(String arg : args){
+            if(arg.startsWith(prefix)) return arg.substring(prefix.length());
+        }
+        return defaultValue;
+    }
+
+    /**
+     * This method checks whether a flag of the form --name was passed on the command line.
+     * @param args command line arguments
+     * @param name flag name without the leading dashes
+     * @return whether the flag is present
+     */
+    public static boolean hasFlag(String[] args, String name){
+        return Arrays.asList(args).contains("--" + name);
+    }
+
     /**
      * This routine acts as a test driver for your Blockchain.
      * It takes about 100~400 milliseconds on average to generate and add a new block with difficulty 4 to the blockchain.
      * It takes about 1000~4000 milliseconds on average to generate and add a new block with difficulty 5 to the blockchain.
      * It both takes about 0~3 milliseconds on average to verify blocks with difficulty 4 and 5.
+     * Pass --mining-threads=N to split the nonce search of every new block across N workers.
+     * Pass --parallel-verify to hash ranges of blocks on all cores when the chain is verified.
+     * Pass --data-dir=path to persist the chain in a block store and recover it on the next start.
+     * Every commit is forced to disk unless --sync-interval=N forces the store every N milliseconds instead.
+     * Pass --port=N to listen on another port than 7777, and --connections=N to limit how many clients are served at once.
+     * Pass --nio to serve all connections from one selector thread instead, with --workers=N threads executing requests
+     * and --blocking-workers=N threads executing requests that may block, such as mining and receipt long-polls.
+     * Transactions sent to the mempool are packed up to --block-size=N per block, waiting at most --block-delay=N milliseconds,
+     * and at most --mempool-capacity=N of them wait at the same time.
+     * Pass --target-block-time=N to retarget the difficulty of new blocks toward one block every N milliseconds,
+     * averaged over the last --retarget-window=N blocks, with requested difficulties moving it by at most --max-deviation=N,
+     * and kept between --min-difficulty=N and --max-difficulty=N. Blocks from peers below --min-difficulty are always rejected.
+     * Pass --snapshot=path to let request type 14 export the chain to that file, and to start an empty node from it,
+     * checking its blocks on --snapshot-threads=N threads up to the tip hash given as --trusted-tip=hash.
+     * Pass --peer-port=N to replicate the chain with other servers listed as --peers=host:port,host:port by their peer ports.
+     * The peer port listens on 127.0.0.1 unless --peer-bind=address names another one, such as the cluster network.
+     * Request type 15 returns the metrics of the server as plain text, and --metrics-port=N also serves them over HTTP
+     * on the loopback address. Pass --slow-request=N to print every request taking N milliseconds or more.
      * @param args
      */
     public static void main(String args[]) {
 
         System.out.println("BlockChain initalizing...");
+        //Start measuring the hash rate so the first status request already has a number
+        HashRate.get();
 
-        //Generate an empty blockchain
-        BlockChain blockchain = new BlockChain();
-        //Generate the genesis block with difficulty equal to 2, add it to blockchain
-        Block genesis = new Block(0, blockchain.getTime(), "", 2);
-        blockchain.addBlock(genesis);
+        //Recover the blockchain from disk, or generate an empty one that only lives in memory
+        BlockChain blockchain;
+        String dataDir = stringOption(args, "data-dir", null);
+        if(dataDir != null){
+            try {
+                BlockStore store = new BlockStore(Paths.get(dataDir));
+                store.setSyncInterval(intOption(args, "sync-interval", 0));
+                blockchain = new BlockChain(store);
+                //Take the write lock so no block is half written when the files are closed
+                BlockChain closing = blockchain;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    closing.lock.writeLock().lock();
+                    try {
+                        store.close();
+                    } catch (IOException error) {
+                        System.out.println("IO Exception:" + error.getMessage());
+                    } finally {
+                        closing.lock.writeLock().unlock();
+                    }
+                }, "block-store-close"));
+                System.out.println("Recovered " + blockchain.getChainSize() + " blocks from " + dataDir);
+            } catch (IOException error) {
+                System.out.println("IO Exception:" + error.getMessage());
+                return;
+            }
+        }else{
+            blockchain = new BlockChain();
+        }
+        blockchain.setMiningThreads(intOption(args, "mining-threads", 1));
+        blockchain.setParallelVerification(hasFlag(args, "parallel-verify"));
+        blockchain.setMinDifficulty(intOption(args, "min-difficulty", 1));
+        int targetBlockTime = intOption(args, "target-block-time", 0);
+        if(targetBlockTime > 0){
+            blockchain.setRetarget(new DifficultyRetarget(targetBlockTime, intOption(args, "retarget-window", 16),
+                    intOption(args, "max-deviation", 1), intOption(args, "min-difficulty", 1), intOption(args, "max-difficulty", 8)));
+        }
+        //Start an empty node from a snapshot instead of replaying every block
+        String snapshot = stringOption(args, "snapshot", null);
+        if(snapshot != null){
+            snapshotFile = Paths.get(snapshot);
+            if(blockchain.getChainSize() == 0 && Files.exists(snapshotFile)){
+                String trustedTip = stringOption(args, "trusted-tip", null);
+                if(trustedTip == null) System.out.println("No --trusted-tip given, trusting the tip recorded in " + snapshot);
+                long t0 = System.currentTimeMillis();
+                try {
+                    int count = Snapshot.importInto(blockchain, snapshotFile, trustedTip,
+                            intOption(args, "snapshot-threads", Runtime.getRuntime().availableProcessors()));
+                    System.out.println("Imported " + count + " blocks from " + snapshot + " in " + (System.currentTimeMillis() - t0) + " milliseconds");
+                } catch (IOException error) {
+                    System.out.println("IO Exception:" + error.getMessage());
+                    return;
+                }
+            }
+        }
 
-        //Launch a server socket
-        connect(blockchain);
+        //Join the other nodes and take their chain before creating a genesis block of our own
+        int peerPort = intOption(args, "peer-port", 0);
+        if(peerPort > 0){
+            String peerList = stringOption(args, "peers", "");
+            List<String> peerAddresses = new ArrayList<>();
+            for(String address : peerList.split(",")){
+                if(!address.trim().isEmpty()) peerAddresses.add(address.trim());
+            }
+            PeerNode peers;
+            try {
+                //The peer port is not signed, it only listens on the loopback address unless told otherwise
+                peers = new PeerNode(blockchain, InetAddress.getByName(stringOption(args, "peer-bind", "127.0.0.1")), peerPort, peerAddresses);
+                peers.start();
+            } catch (IOException error) {
+                System.out.println("IO Exception:" + error.getMessage());
+                return;
+            }
+            blockchain.setPeers(peers);
+            peers.syncNow();
+            System.out.println("Peer port " + peerPort + ", " + blockchain.getChainSize() + " blocks after syncing with " + peerAddresses);
+        }
+        //Generate the genesis block with difficulty equal to 2, add it to a new blockchain
+        if(blockchain.getChainSize() == 0){
+            Block genesis = new Block(0, blockchain.getTime(), "", 2);
+            blockchain.addBlock(genesis);
+        }
+
+        //Start the background miner of the mempool
+        Mempool mempool = new Mempool(blockchain, intOption(args, "block-size", 100),
+                intOption(args, "block-delay", 1000), intOption(args, "mempool-capacity", 100000));
+        blockchain.setMempool(mempool);
+        mempool.start();
+
+        //Watch the server through the metrics request, or over HTTP as well
+        Metrics metrics = Metrics.get();
+        metrics.setSlowRequest(intOption(args, "slow-request", 0));
+        metrics.gauge("mempool_pending", mempool::getPendingCount);
+        metrics.gauge("chain_size", blockchain::getChainSize);
+        int metricsPort = intOption(args, "metrics-port", 0);
+        if(metricsPort > 0){
+            try {
+                metrics.serve(metricsPort);
+                System.out.println("Metrics on http://localhost:" + metricsPort + "/metrics");
+            } catch (IOException error) {
+                System.out.println("IO Exception:" + error.getMessage());
+                return;
+            }
+        }
+
+        int serverPort = intOption(args, "port", 7777);
+        if(hasFlag(args, "nio")){
+            //Launch a selector based server that keeps connections open between requests
+            try {
+                new NioServer(blockchain, serverPort, intOption(args, "workers", Runtime.getRuntime().availableProcessors()),
+                        intOption(args, "blocking-workers", 64)).run();
+            } catch (IOException error) {
+                System.out.println("IO Exception:" + error.getMessage());
+            }
+        }else{
+            //Launch a server socket
+            connect(blockchain, serverPort, intOption(args, "connections", 64));
+        }
 
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to check the id and signature of client requests.
+ * It remembers the public keys it has already seen, so the user id of a returning client is not hashed again
+ * and its key is not parsed again, and it can check a batch of queued requests on all cores.
+ */
+
+import org.json.simple.JSONObject;
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+public class SignatureVerifier {
+
+    /**
+     * This class holds a public key together with the user id it generates.
+     */
+    private static class PublicKey {
+
+        final BigInteger e;
+        final BigInteger n;
+        final String id;
+
+        PublicKey(BigInteger e, BigInteger n){
+            this.e = e;
+            this.n = n;
+            this.id = Server.generateID(e, n);
+        }
+    }
+
+    //Public keys by their decimal e and n, the least recently used one is dropped when full
+    private final Map<String, PublicKey> keys;
+
+    /**
+     * This constructor creates a verifier that remembers up to the given number of public keys.
+     * @param capacity most public keys kept
+     */
+    public SignatureVerifier(int capacity){
+        this.keys = new LinkedHashMap<String, PublicKey>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PublicKey> eldest){
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * This method looks up the public key of a request, and parses it and generates its id on a miss.
+     * @param e decimal public exponent
+     * @param n decimal modulus
+     * @return the public key
+     */
+    private PublicKey key(String e, String n){
+        String name = e + ":" + n;
+        synchronized (this.keys) {
+            PublicKey key = this.keys.get(name);
+            if(key != null) return key;
+        }
+        //Hash outside the lock, two threads may both compute the same key which is harmless
+        PublicKey key = new PublicKey(new BigInteger(e), new BigInteger(n));
+        synchronized (this.keys) {
+            this.keys.put(name, key);
+        }
+        return key;
+    }
+
+    /**
+     * This method checks if the user ID is hashed properly, and if the request is properly signed
+     * @param map the request
+     * @return whether operation is valid to resume
+     */
+    public boolean verify(Map map){
+
+        long t0 = System.nanoTime();
+        try {
+            return check(map);
+        } finally {
+            Metrics.get().recordSignatureVerification(System.nanoTime() - t0);
+        }
+    }
+
+    /**
+     * This method does the checks of verify.
+     * @param map the request
+     * @return whether operation is valid to resume
+     */
+    private boolean check(Map map){
+
+        String id = (String) map.get("id");
+        PublicKey key = key((String) map.get("e"), (String) map.get("n"));
+        int type = ((Long) map.get("type")).intValue();
+        int param1 = ((Long) map.get("param1")).intValue();
+        String param2 = (String) map.get("param2");
+        String signature = (String) map.get("signature");
+
+        //The id is a hash of the key, a wrong id fails without touching the signature
+        if(!key.id.equals(id)) return false;
+
+        //Take the encrypted string and make it a big integer, then decrypt it
+        BigInteger decryptedHash = new BigInteger(signature).modPow(key.e, key.n);
+
+        //Retrieve the origin hashed message
+        JSONObject obj = new JSONObject();
+        obj.put("id", id);
+        obj.put("e", key.e.toString());
+        obj.put("n", key.n.toString());
+        obj.put("type", type);
+        obj.put("param1", param1);
+        obj.put("param2", param2);
+        byte[] bytes = Server.SHA256Hash(obj.toString());
+
+        return new BigInteger(1, bytes).compareTo(decryptedHash) == 0;
+    }
+
+    /**
+     * This method checks a batch of requests on the common fork-join pool.
+     * A request with missing or mistyped fields counts as not verified.
+     * @param maps the requests
+     * @return whether each request is valid to resume, in the order of the requests
+     */
+    public boolean[] verifyAll(List<? extends Map> maps){
+
+        boolean[] verified = new boolean[maps.size()];
+        IntStream.range(0, maps.size()).parallel().forEach(i -> {
+            try {
+                verified[i] = verify(maps.get(i));
+            } catch (RuntimeException error) {
+                verified[i] = false;
+            }
+        });
+        return verified;
+    }
+
+    /**
+     * Getter for the number of remembered public keys
+     * @return number of public keys in the cache
+     */
+    public int getCachedKeys(){
+        synchronized (this.keys) {
+            return this.keys.size();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to copy a whole blockchain into a single file and to start a new node from such a file.
+ * A snapshot holds the number of blocks, the hash of the latest block and every block encoded by BlockCodec.
+ * Importing checks the blocks while the file is still being read: batches of blocks are decoded and hashed on all cores,
+ * and the links between them are followed in order up to the tip hash the operator trusts.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class Snapshot {
+
+    //Header of a snapshot file: magic and version
+    private static final int MAGIC = 0x424c4b50;
+    private static final int VERSION = 1;
+    //Blocks decoded and hashed by one task while the next ones are read
+    private static final int BATCH = 1024;
+
+    /**
+     * This class holds a batch of blocks read from a snapshot, filled in by the task that decodes and hashes it.
+     */
+    private static class Batch {
+
+        final int from;
+        final List<byte[]> records;
+        final List<Block> blocks = new ArrayList<>();
+        final List<String> hashes = new ArrayList<>();
+        //Whether every block of the batch met its difficulty and Merkle root
+        boolean legal = true;
+
+        Batch(int from, List<byte[]> records){
+            this.from = from;
+            this.records = records;
+        }
+    }
+
+    /**
+     * This method writes every block of the chain to a snapshot file.
+     * The file is written next to the target and moved over it at the end, so a reader never sees half a snapshot.
+     * The read lock is held while the blocks are written, so the snapshot is one consistent chain.
+     * @param blockchain the chain to export
+     * @param file the snapshot file
+     * @return the number of blocks written
+     * @throws IOException if the file cannot be written
+     */
+    public static int export(BlockChain blockchain, Path file) throws IOException {
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int count;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            blockchain.lock.readLock().lock();
+            try {
+                count = blockchain.getChainSize();
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(count);
+                byte[] tip = blockchain.chainHash.getBytes(StandardCharsets.US_ASCII);
+                out.writeInt(tip.length);
+                out.write(tip);
+                for(int i = 0; i < count; i++){
+                    BlockCodec.write(blockchain.blocks.get(i), out);
+                }
+            } finally {
+                blockchain.lock.readLock().unlock();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * This method fills an empty chain from a snapshot file after checking every block.
+     * Blocks are hashed in batches on a pool while the rest of the file is read, and each batch is linked
+     * to the one before it in order. The chain is only touched once the whole snapshot has been checked,
+     * and its blocks count as verified afterwards, so the first validation does not hash them again.
+     * @param blockchain the chain to fill, it has to be empty
+     * @param file the snapshot file
+     * @param trustedTip the hash the latest block must have, or null to trust the hash recorded in the file
+     * @param threads number of threads hashing blocks
+     * @return the number of blocks imported
+     * @throws IOException if the file cannot be read, is not a snapshot, or holds an illegal chain
+     */
+    public static int importInto(BlockChain blockchain, Path file, String trustedTip, int threads) throws IOException {
+
+        threads = Math.max(1, threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-verifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+
+            DataInputStream header = new DataInputStream(in);
+            if(header.readInt() != MAGIC || header.readInt() != VERSION) throw new IOException("Not a version " + VERSION + " snapshot: " + file);
+            int count = header.readInt();
+            int tipLength = header.readInt();
+            if(count < 0 || tipLength < 0 || tipLength > 2 * BlockHasher.HASH_LENGTH) throw new IOException("Malformed snapshot header");
+            byte[] tipBytes = new byte[tipLength];
+            header.readFully(tipBytes);
+            String tip = new String(tipBytes, StandardCharsets.US_ASCII);
+            if(trustedTip != null && !trustedTip.equals(tip)) throw new IOException("Snapshot ends at " + tip + ", not at the trusted tip " + trustedTip);
+
+            List<Block> blocks = new ArrayList<>(Math.min(count, 1 << 20));
+            //Batches being checked, in file order, at most two per thread so reading stays ahead without holding the whole file twice
+            Deque<Future<Batch>> checking = new ArrayDeque<>();
+            String previousHash = "";
+
+            int read = 0;
+            while(read < count){
+                //Only split the file into records here, decoding happens on the pool
+                List<byte[]> records = new ArrayList<>(Math.min(BATCH, count - read));
+                while(records.size() < BATCH && read < count){
+                    byte[] record = BlockCodec.readRecord(in);
+                    if(record == null) throw new IOException("Snapshot ends after " + read + " of " + count + " blocks");
+                    records.add(record);
+                    read++;
+                }
+                Batch batch = new Batch(read - records.size(), records);
+                checking.add(pool.submit(() -> check(batch)));
+                while(checking.size() > 2 * threads){
+                    previousHash = link(take(checking.poll()), previousHash, blocks);
+                }
+            }
+            while(!checking.isEmpty()){
+                previousHash = link(take(checking.poll()), previousHash, blocks);
+            }
+            if(!previousHash.equals(tip)) throw new IOException("Snapshot chain ends at " + previousHash + ", not at its tip " + tip);
+
+            blockchain.restore(blocks, tip);
+            return count;
+
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * This method decodes a batch of blocks, hashes them and checks their proof of work and Merkle roots.
+     * @param batch the batch, its blocks and hashes are filled in
+     * @return the batch
+     * @throws IOException if a record is not a valid block
+     */
+    private static Batch check(Batch batch) throws IOException {
+        for(byte[] record : batch.records){
+            Block block = BlockCodec.decode(ByteBuffer.wrap(record));
+            byte[] hash = block.calculateHashBytes();
+            if(!block.meetsTarget(hash) || !block.hasValidMerkleRoot()) batch.legal = false;
+            batch.blocks.add(block);
+            batch.hashes.add(BlockHasher.toHex(hash));
+        }
+        return batch;
+    }
+
+    /**
+     * This method waits for a batch to be checked.
+     * @param future the checking task
+     * @return the checked batch
+     * @throws IOException if the task failed or the thread was interrupted
+     */
+    private static Batch take(Future<Batch> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while checking the snapshot");
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            throw new IOException("Could not check the snapshot: " + ex.getCause());
+        }
+    }
+
+    /**
+     * This method checks that a checked batch follows the blocks before it and keeps its blocks.
+     * @param batch the batch
+     * @param previousHash the hash of the block before the batch
+     * @param blocks the checked blocks so far
+     * @return the hash of the last block of the batch
+     * @throws IOException if a block of the batch is illegal
+     */
+    private static String link(Batch batch, String previousHash, List<Block> blocks) throws IOException {
+        if(!batch.legal) throw new IOException("Snapshot holds an improper hash in blocks " + batch.from + " to " + (batch.from + batch.blocks.size() - 1));
+        for(int k = 0; k < batch.blocks.size(); k++){
+            Block block = batch.blocks.get(k);
+            if(block.getIndex() != batch.from + k) throw new IOException("Snapshot block " + (batch.from + k) + " has index " + block.getIndex());
+            if(!previousHash.equals(block.getPreviousHash())) throw new IOException("Snapshot block " + (batch.from + k) + " is not linked to the block before it");
+            previousHash = batch.hashes.get(k);
+            blocks.add(block);
+        }
+        return previousHash;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to describe the proof of work of a block as a 256-bit number instead of a count of leading zeros.
+ * A hash meets the target when it is below it, so the difficulty can be any fraction of a hexadecimal digit.
+ * The target is kept in 32 bits like the compact bits field of Bitcoin: a 24-bit mantissa shifted left by 0 to 233 bits.
+ */
+
+import java.math.BigInteger;
+
+public class Target {
+
+    //Bits of the mantissa, the highest one is always set for a target made by fromDifficulty
+    private static final int MANTISSA_BITS = 24;
+    private static final int MANTISSA_MASK = (1 << MANTISSA_BITS) - 1;
+    //Largest difficulty in leading zero bits that still has a full mantissa
+    private static final double MAX_BITS = BlockHasher.HASH_LENGTH * 8 - (MANTISSA_BITS - 1);
+
+    private final int compact;
+    //The target as 32 big-endian bytes, or null when it is 2^256 or more and every hash meets it
+    private final byte[] bytes;
+
+    /**
+     * This constructor expands a compact target.
+     * @param compact the shift in the highest 8 bits and the mantissa in the lower 24 bits
+     */
+    private Target(int compact){
+        this.compact = compact;
+        BigInteger value = BigInteger.valueOf(compact & MANTISSA_MASK).shiftLeft(compact >>> MANTISSA_BITS);
+        if(value.bitLength() > BlockHasher.HASH_LENGTH * 8){
+            this.bytes = null;
+        }else{
+            byte[] raw = value.toByteArray();
+            this.bytes = new byte[BlockHasher.HASH_LENGTH];
+            //toByteArray may add a sign byte or leave out leading zeros
+            int length = Math.min(raw.length, BlockHasher.HASH_LENGTH);
+            System.arraycopy(raw, raw.length - length, this.bytes, BlockHasher.HASH_LENGTH - length, length);
+        }
+    }
+
+    /**
+     * This method creates the target for a difficulty counted in hexadecimal digits, which may be a fraction.
+     * A whole difficulty d gives the target 2^(256-4d), which the same hashes meet as d leading zeros.
+     * @param difficulty the difficulty in hexadecimal digits, clamped to what the compact form can hold
+     * @return the target
+     */
+    public static Target fromDifficulty(double difficulty){
+
+        double bits = Math.max(0, Math.min(MAX_BITS, difficulty * 4));
+        if(Double.isNaN(bits)) bits = 0;
+
+        //2^(256-bits) = 2^exponent * 2^fraction, the fraction goes into the mantissa
+        double log = BlockHasher.HASH_LENGTH * 8 - bits;
+        int exponent = (int) Math.floor(log);
+        long mantissa = Math.round(Math.pow(2, log - exponent) * (1 << (MANTISSA_BITS - 1)));
+        if(mantissa > MANTISSA_MASK){
+            mantissa >>= 1;
+            exponent++;
+        }
+        int shift = exponent - (MANTISSA_BITS - 1);
+        return new Target((shift << MANTISSA_BITS) | (int) mantissa);
+    }
+
+    /**
+     * This method restores a target from its compact form.
+     * @param compact the compact form, as returned by getCompact
+     * @return the target
+     */
+    public static Target fromCompact(int compact){
+        return new Target(compact);
+    }
+
+    /**
+     * This method checks whether a raw digest is below the target, comparing bytes without building a number.
+     * @param hash the raw digest
+     * @return whether the hash meets the target
+     */
+    public boolean isMetBy(byte[] hash){
+        if(this.bytes == null) return true;
+        for(int i = 0; i < BlockHasher.HASH_LENGTH; i++){
+            int a = hash[i] & 0xFF;
+            int b = this.bytes[i] & 0xFF;
+            if(a != b) return a < b;
+        }
+        return false;
+    }
+
+    /**
+     * This method works out the difficulty of the target in hexadecimal digits.
+     * @return the difficulty, a whole number for targets made from a whole difficulty
+     */
+    public double getDifficulty(){
+        int mantissa = this.compact & MANTISSA_MASK;
+        if(mantissa == 0) return Double.POSITIVE_INFINITY;
+        double log = (this.compact >>> MANTISSA_BITS) + Math.log(mantissa) / Math.log(2);
+        return (BlockHasher.HASH_LENGTH * 8 - log) / 4;
+    }
+
+    /**
+     * Getter for compact
+     * @return the compact form of the target
+     */
+    public int getCompact(){
+        return this.compact;
+    }
+
+    /**
+     * This method writes the compact form as 8 hexadecimal digits, the way it goes into the block hash.
+     * @return the compact form in hexadecimal
+     */
+    @Override
+    public String toString(){
+        return String.format("%08x", this.compact);
+    }
+
+    @Override
+    public boolean equals(Object other){
+        return other instanceof Target && ((Target) other).compact == this.compact;
+    }
+
+    @Override
+    public int hashCode(){
+        return this.compact;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * @author Bertha Hsu
+ * This script is used to check that a repair does not hide a block that was corrupted while it was mining.
+ * It runs the steps of a RepairJob by hand, corrupts an earlier block between mining and committing,
+ * lets the repair finish and exits with status 1 if any block is left invalid.
+ */
+
+public class RepairRaceCheck {
+
+    /**
+     * This method runs the check.
+     * @param args not used
+     */
+    public static void main(String[] args) {
+
+        BlockChain blockchain = new BlockChain();
+        for(int i = 0; i < 4; i++){
+            blockchain.mineBlock("tx" + i, 1);
+        }
+
+        //Corrupt block 2 and take it as a repair job would
+        blockchain.blocks.get(2).setData("corrupt2");
+        blockchain.lock.writeLock().lock();
+        int i;
+        Block copy;
+        try {
+            i = blockchain.nextToRepair();
+            copy = blockchain.blocks.get(i).copyHeader();
+        } finally {
+            blockchain.lock.writeLock().unlock();
+        }
+
+        //Mine it outside the lock, and corrupt block 0 in the meantime
+        String hash = blockchain.mine(copy);
+        blockchain.lock.writeLock().lock();
+        try {
+            blockchain.blocks.get(0).setData("corrupt0");
+            blockchain.commitRepair(i, copy, hash);
+        } finally {
+            blockchain.lock.writeLock().unlock();
+        }
+
+        //Let the repair run to the end, as the job would
+        while(true){
+            blockchain.lock.writeLock().lock();
+            try {
+                i = blockchain.nextToRepair();
+                if(i < 0) break;
+                copy = blockchain.blocks.get(i).copyHeader();
+            } finally {
+                blockchain.lock.writeLock().unlock();
+            }
+            hash = blockchain.mine(copy);
+            blockchain.lock.writeLock().lock();
+            try {
+                blockchain.commitRepair(i, copy, hash);
+            } finally {
+                blockchain.lock.writeLock().unlock();
+            }
+        }
+
+        //Check every block directly instead of trusting the verified prefix
+        for(int j = 0; j < blockchain.getChainSize(); j++){
+            Block block = blockchain.blocks.get(j);
+            String next = j == blockchain.getChainSize() - 1 ? blockchain.chainHash : blockchain.blocks.get(j + 1).getPreviousHash();
+            if(!block.meetsTarget(block.calculateHashBytes()) || !block.calculateHash().equals(next)){
+                System.out.println("FAILED: block " + j + " is invalid after the repair finished");
+                System.exit(1);
+            }
+        }
+        System.out.println("OK: the block corrupted during the repair was repaired too");
+    }
+}